@@ -3,8 +3,18 @@ package src.config;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import src.neighbor.ContentSummary;
+import src.neighbor.DatagramTransport;
 import src.neighbor.Neighbor;
+import src.neighbor.PeerTable;
+import src.neighbor.QueryAdmission;
+import src.neighbor.RouteTable;
+import src.sharing.FileCache;
+import src.sharing.FileStore;
+import src.sharing.SharedCatalog;
 
 public class ConfigObject {
 	// Utility class for storing information about this peer
@@ -12,15 +22,121 @@ public class ConfigObject {
 	public String hostname, host_ip;
 	public InetAddress host;
 	public int neighbor_port, sharing_port;
-	public ArrayList<String> shared_files, obtained_files;
-	public ArrayList<Neighbor> neighbors;
+	public SharedCatalog shared_files;
+	public FileStore files;
+	public FileCache cache;
+	public ArrayList<String> obtained_files;
+	public CopyOnWriteArrayList<Neighbor> neighbors;
 	public ConcurrentLinkedQueue<Integer> openPorts;
+	public PeerTable peers;
+	public AtomicInteger incomingNeighbors;
+	public RouteTable routes;
+	public ContentSummary summary;
+	public QueryAdmission admission;
+
+	// True when outgoing neighbors are reached over UDP instead of TCP connections, set by the "transport" command
+	public volatile boolean udpNeighbors;
+
+	// The datagram transport on the neighbor port, used for direct responses even while neighbors use TCP
+	public DatagramTransport datagrams;
+	// True when queries from this host ask for responses to be sent straight back over UDP, set by the "direct" command
+	public volatile boolean directResponses;
+
+	// Fraction of queries from this host that are traced hop by hop, set by the "trace" command
+	public volatile double traceRate = 0.01;
 
 	public final String shared_dir = "files/shared/";
 	public final String obtained_dir = "files/obtained/";
+	public final String partial_dir = "files/partial/";
+	public final String cache_dir = "files/cache/";
+	// Binary snapshot of the shared catalog, rebuilt from config_sharing.txt when missing
+	public final String catalog_file = "config/catalog.bin";
 
 	public final int socketTimeout = 60000;
 
+	// Reconnection backoff for neighbor connections, doubled after each failed attempt
+	// Every neighbor is connected from the supervisor thread, so one unreachable address may hold it for connectTimeout
+	public final int connectTimeout = 3000;
+	public final int reconnectBaseDelay = 1000;
+	public final int reconnectMaxDelay = 60000;
+
+	// Peer exchange and neighbor degree maintenance
+	// Peers that have not been seen for peerMaxAge are dropped from the peer table
+	public final int peerExchangeInterval = 30000;
+	public final int peerExchangeSize = 10;
+	public final int peerTableSize = 100;
+	public final long peerMaxAge = 600000;
+	public final int targetDegree = 4;
+	public final int maxDegree = 8;
+
+	// Reverse path routes for relaying responses expire after routeTimeout
+	// At most maxRoutes are kept, and at most maxRouteResponses responses are relayed per query
+	public final int maxRoutes = 10000;
+	public final long routeTimeout = 120000;
+	public final int maxRouteResponses = 16;
+
+	// QIDs of queries already seen expire after qidTimeout, like their routes
+	// At most maxQids are kept, enough for every query forwarded at forwardRate until it expires
+	public final int maxQids = 10000;
+	public final long qidTimeout = 120000;
+
+	// Queries waiting to be sent to each neighbor, forwarded queries avoid neighbors whose queue is congested
+	public final int queryQueueSize = 256;
+	public final double queryQueueCongested = 0.75;
+
+	// Each neighbor can send queryRate queries per second, with bursts of up to queryBurst, further queries are dropped
+	// This peer forwards at most forwardRate queries per second in total, with bursts of up to forwardBurst
+	// Forwarding is kept under the rate neighbors accept, so a relay passing on a flood doesn't trip its neighbors' limits
+	public final double queryRate = 50;
+	public final double queryBurst = 100;
+	public final double forwardRate = 40;
+	public final double forwardBurst = 80;
+
+	// Attenuated Bloom filter content summaries exchanged with neighbors every summaryInterval
+	// Each filter is sized for the files it holds at a false positive rate of summaryFalsePositive, rounded up to
+	// a power of two between summaryMinBits and summaryMaxBits so filters of different sizes can be merged
+	public final double summaryFalsePositive = 0.01;
+	public final int summaryMinBits = 1024;
+	public final int summaryMaxBits = 1 << 23;
+	public final int summaryDepth = 3;
+	public final int summaryInterval = 30000;
+
+	// Files are downloaded in chunks of chunkSize bytes from up to swarmProviders peers at once
+	public final int chunkSize = 256 * 1024;
+	public final int swarmProviders = 3;
+	// Downloaded data is synced to disk according to fsyncPolicy: "none" leaves it to the operating system,
+	// "complete" syncs a finished file before it is moved into the obtained folder,
+	// and "chunk" also syncs every chunk before other peers can download it from this host
+	public final String fsyncPolicy = "complete";
+
+	// With "cache on", a relay caches files that were queried cacheThreshold times, counts are halved every cacheDecayInterval
+	// The cache holds at most cacheMaxBytes, evicting the least frequently used files first
+	public final int cacheThreshold = 3;
+	public final long cacheDecayInterval = 600000;
+	public final long cacheMaxBytes = 100 * 1024 * 1024;
+
+	// Batch get defaults: queries in flight, parallel downloads, and how long to wait for a query's first response
+	public final int batchWindow = 32;
+	public final int batchDownloads = 4;
+	public final int batchQueryTimeout = 10000;
+
+	// Datagram transport: heartbeats every udpHeartbeatInterval and a neighbor is lost after udpTimeout of silence
+	// Messages to the same neighbor wait up to udpBatchDelay to share a datagram of at most udpPacketSize bytes
+	// Unacknowledged datagrams are sent again after udpRetryDelay, doubled each time, up to udpRetries times
+	public final int udpHeartbeatInterval = 10000;
+	public final int udpTimeout = 30000;
+	public final int udpBatchDelay = 2;
+	public final int udpPacketSize = 1400;
+	public final int udpRetryDelay = 200;
+	public final int udpRetries = 4;
+
+	// Structured log file, rotated when it reaches logMaxBytes with at most logFiles files kept
+	// logBufferSize records can wait to be written before new records are dropped
+	public final String log_file = "logs/p2p.log";
+	public final long logMaxBytes = 10 * 1024 * 1024;
+	public final int logFiles = 5;
+	public final int logBufferSize = 8192;
+
 	public ConfigObject() {}
 
 }
@@ -0,0 +1,63 @@
+package src.dht;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class Contact {
+	// Utility class for storing the ID and UDP address of a DHT node
+
+	public BigInteger id;
+	public String ip;
+	public int port;
+
+	public Contact(BigInteger i, String addr, int p) {
+		id = i;
+		ip = addr;
+		port = p;
+	}
+
+	public String encode() {
+		// <ID in hex>,<IP>,<port>
+		return id.toString(16) + "," + ip + "," + port;
+	}
+
+	public static Contact decode(String encoded) {
+		// Returns null if the contact is malformed
+		String[] fields = encoded.split(",");
+		if (fields.length != 3) {
+			return null;
+		}
+		try {
+			BigInteger id = new BigInteger(fields[0], 16);
+			int port = Integer.parseInt(fields[2]);
+			if (!valid(id, port) || !fields[1].matches("[0-9]{1,3}(\\.[0-9]{1,3}){3}")) {
+				return null;
+			}
+			return new Contact(id, fields[1], port);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public static boolean valid(BigInteger id, int port) {
+		// IDs are in the 160 bit SHA-1 space and ports are UDP ports
+		return validId(id) && port > 0 && port <= 65535;
+	}
+
+	public static boolean validId(BigInteger id) {
+		return id.signum() >= 0 && id.bitLength() <= 160;
+	}
+
+	public static BigInteger hash(String key) {
+		// Node IDs and keys share the same 160 bit SHA-1 space
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return new BigInteger(1, sha1.digest(key.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+}
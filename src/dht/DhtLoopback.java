@@ -0,0 +1,72 @@
+package src.dht;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+public class DhtLoopback {
+	// Checks the DHT with many nodes on this host, without peers or config files
+	// java src.dht.DhtLoopback [nodes] [first port]
+	// Every node joins through the first one and publishes one key, then every key is looked up from another
+	// random node, and the number of rounds each lookup took is printed next to log2 of the number of nodes
+	// Exits with status 1 if any lookup did not find its provider
+
+	public static void main(String[] args) throws InterruptedException, ExecutionException {
+		int count = 32, firstPort = 40000;
+		try {
+			if (args.length > 0) {
+				count = Integer.parseInt(args[0]);
+			}
+			if (args.length > 1) {
+				firstPort = Integer.parseInt(args[1]);
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("Usage: java src.dht.DhtLoopback [nodes] [first port]");
+			return;
+		}
+
+		// Nodes join one at a time, so each one can find the nodes that joined before it
+		ArrayList<DhtNode> nodes = new ArrayList<DhtNode>();
+		List<Contact> bootstrap = Collections.singletonList(new Contact(null, "127.0.0.1", firstPort));
+		for (int i = 0; i < count; i++) {
+			DhtNode node = new DhtNode("127.0.0.1", firstPort + i);
+			if (!node.isBound()) {
+				System.exit(1);
+			}
+			node.start();
+			nodes.add(node);
+			if (i > 0) {
+				node.join(bootstrap);
+				node.await();
+			}
+		}
+
+		for (int i = 0; i < count; i++) {
+			nodes.get(i).publish("file" + i, "127.0.0.1:" + (firstPort + i));
+		}
+		for (DhtNode node: nodes) {
+			node.await();
+		}
+
+		Random random = new Random();
+		int found = 0, hops = 0, maxHops = 0, contacted = 0;
+		for (int i = 0; i < count; i++) {
+			int from = (i + 1 + random.nextInt(count - 1)) % count;
+			DhtNode.Lookup lookup = nodes.get(from).find("file" + i);
+			if (lookup.providers.contains("127.0.0.1:" + (firstPort + i))) {
+				found++;
+			}
+			hops += lookup.hops;
+			maxHops = Math.max(maxHops, lookup.hops);
+			contacted += lookup.contacted;
+		}
+
+		System.out.println("Looked up " + count + " keys on " + count + " nodes, found " + found);
+		System.out.println(String.format("Rounds per lookup: %.2f average, %d most, log2 of nodes is %.2f",
+				(double) hops / count, maxHops, Math.log(count) / Math.log(2)));
+		System.out.println(String.format("Nodes contacted per lookup: %.2f average", (double) contacted / count));
+		System.exit(found == count ? 0 : 1);
+	}
+}
@@ -0,0 +1,478 @@
+package src.dht;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import src.log.Level;
+import src.log.Log;
+import src.log.Logger;
+
+public class DhtNode implements Runnable {
+	// Kademlia node mapping keys (hashed filenames) to the sharing servers that provide them
+	// It runs over UDP beside the neighbor protocol, and any number of nodes can run on one host with different ports
+	//
+	// Every message is one datagram: <type>;<RPC ID>;<sender ID>;<sender port>[;<arguments>]
+	// PING                    -> PONG
+	// FIND_NODE;<target>      -> NODES;<contact>;<contact>...
+	// FIND_VALUE;<key>        -> VALUE;<provider>;<provider>... if the key is stored here, otherwise NODES
+	// STORE;<key>;<provider>  -> STORED
+
+	private static final Logger log = Log.getLogger("dht");
+
+	public static class Lookup {
+		// Result of an iterative lookup
+		// hops is the number of rounds of parallel requests, contacted is the number of requests sent
+		public List<String> providers = new ArrayList<String>();
+		public List<Contact> closest = new ArrayList<Contact>();
+		public int hops, contacted;
+	}
+
+	// Bucket size, lookup parallelism and timeouts
+	// Each node stores at most maxKeys keys with maxProviders providers each, providers expire after valueTimeout
+	private final int k = 8, alpha = 3, rpcTimeout = 1000, maxProviders = 20, maxKeys = 10000;
+	private final long valueTimeout = 3600000, republishInterval = 1800000, refreshInterval = 3600000;
+
+	private Contact self;
+	private DatagramSocket socket;
+	private Thread t;
+	private RoutingTable table;
+	private boolean bound;
+	private volatile boolean running;
+	private AtomicLong nextRpc;
+	private ConcurrentHashMap<String, ArrayBlockingQueue<String[]>> pending;
+	private HashMap<BigInteger, HashMap<String, Long>> values;
+	private ConcurrentHashMap<String, String> published;
+	private ExecutorService rpcs;
+	private ScheduledExecutorService publisher;
+
+	public DhtNode(String ip, int port) {
+		self = new Contact(Contact.hash(ip + ":" + port), ip, port);
+		table = new RoutingTable(self.id, k);
+		nextRpc = new AtomicLong();
+		pending = new ConcurrentHashMap<String, ArrayBlockingQueue<String[]>>();
+		values = new HashMap<BigInteger, HashMap<String, Long>>();
+		published = new ConcurrentHashMap<String, String>();
+		rpcs = Executors.newCachedThreadPool();
+		// Joining and publishing run one at a time in the background
+		publisher = Executors.newSingleThreadScheduledExecutor();
+
+		try {
+			socket = new DatagramSocket(port);
+			bound = true;
+		} catch (SocketException e) {
+			System.out.println("Could not open socket for the DHT on port " + port);
+			bound = false;
+		}
+	}
+
+	public boolean isBound() {
+		return bound;
+	}
+
+	public boolean isRunning() {
+		// False before start and after stopNode
+		return running;
+	}
+
+	public Thread start() {
+		if (t == null) {
+			running = true;
+			t = new Thread (this, "DHT Node");
+			t.start();
+
+			// Store every published key again before it expires on other nodes
+			// Keys stored here by other nodes that were not republished are dropped at the same time
+			publisher.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					expireValues();
+					for (Map.Entry<String, String> e: published.entrySet()) {
+						store(e.getKey(), e.getValue());
+					}
+				}
+			}, republishInterval, republishInterval, TimeUnit.MILLISECONDS);
+		}
+		return t;
+	}
+
+	public void run() {
+		byte[] buffer = new byte[8192];
+		while (!Thread.currentThread().isInterrupted()) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(packet);
+			} catch (IOException e) {
+				// Closing the socket causes an IO exception
+				// Thread is now interrupted and will exit
+				continue;
+			}
+			String message = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+			// This thread answers every request, so a message it can't handle must not end it
+			try {
+				handleMessage(message.split(";"), packet.getAddress());
+			} catch (RuntimeException e) {
+				log.warn("Malformed DHT message recieved", "from", packet.getAddress(), "error", e);
+			}
+		}
+	}
+
+	private void handleMessage(String[] m, InetAddress address) {
+		if (m.length < 4) {
+			return;
+		}
+
+		// Every message tells us about a live node
+		Contact sender;
+		try {
+			sender = new Contact(new BigInteger(m[2], 16), address.getHostAddress(), Integer.parseInt(m[3]));
+		} catch (NumberFormatException e) {
+			return;
+		}
+		if (!Contact.valid(sender.id, sender.port)) {
+			return;
+		}
+		table.update(sender);
+		if (log.isEnabled(Level.DEBUG)) {
+			log.debug("Recieved DHT message", "type", m[0], "from", sender.ip + ":" + sender.port);
+		}
+
+		switch (m[0]) {
+		case "PING":
+			send(sender, "PONG", m[1], null);
+			break;
+		case "FIND_NODE":
+			if (m.length == 5) {
+				send(sender, "NODES", m[1], encodeContacts(parseId(m[4]), sender));
+			}
+			break;
+		case "FIND_VALUE":
+			if (m.length == 5) {
+				List<String> providers = providers(parseId(m[4]));
+				if (providers.isEmpty()) {
+					send(sender, "NODES", m[1], encodeContacts(parseId(m[4]), sender));
+				}
+				else {
+					send(sender, "VALUE", m[1], String.join(";", providers));
+				}
+			}
+			break;
+		case "STORE":
+			if (m.length == 6) {
+				storeLocal(parseId(m[4]), m[5]);
+				send(sender, "STORED", m[1], null);
+			}
+			break;
+		case "PONG":
+		case "NODES":
+		case "VALUE":
+		case "STORED":
+			// Hand the reply to the thread waiting for it
+			ArrayBlockingQueue<String[]> waiting = pending.remove(m[1]);
+			if (waiting != null) {
+				waiting.offer(m);
+			}
+			break;
+		}
+	}
+
+	public void join(final List<Contact> bootstrap) {
+		// Ping the known nodes, then look up this node's own ID and refresh the buckets to fill the routing table
+		// The contacts only need an IP and port, their IDs are learned from the replies
+		publisher.execute(new Runnable() {
+			public void run() {
+				for (Contact c: bootstrap) {
+					rpc(c, "PING", null);
+				}
+				lookup(self.id, false);
+				refresh();
+				log.info("Joined DHT", "knownNodes", table.size());
+			}
+		});
+
+		// Buckets that see no traffic are refreshed periodically so the routing table stays accurate
+		publisher.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				refresh();
+			}
+		}, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+	}
+
+	private void refresh() {
+		// Look up a random ID in the range of every bucket from the closest known node outwards
+		// Buckets closer than the closest node are empty, since no node shares more leading bits with this one
+		List<Contact> closest = table.closest(self.id, 1);
+		if (closest.isEmpty()) {
+			return;
+		}
+		Random random = new Random();
+		for (int i = closest.get(0).id.xor(self.id).bitLength() - 1; i < 160; i++) {
+			BigInteger distance = new BigInteger(i, random).setBit(i);
+			lookup(self.id.xor(distance), false);
+		}
+	}
+
+	public void publish(final String key, final String provider) {
+		// Announce that provider (<IP>:<port>) has the value for key, now and on every republish
+		published.put(key, provider);
+		publisher.execute(new Runnable() {
+			public void run() {
+				store(key, provider);
+			}
+		});
+	}
+
+	public Lookup find(String key) {
+		// Blocks until the lookup finishes
+		Lookup result = lookup(Contact.hash(key), true);
+		log.debug("DHT lookup finished", "key", key, "providers", result.providers.size(), "hops", result.hops, "contacted", result.contacted);
+		return result;
+	}
+
+	private void store(String key, String provider) {
+		// Store the provider on the k nodes closest to the key, and on this node in case it is one of them
+		BigInteger id = Contact.hash(key);
+		storeLocal(id, provider);
+		for (Contact c: lookup(id, false).closest) {
+			rpc(c, "STORE", id.toString(16) + ";" + provider);
+		}
+	}
+
+	private Lookup lookup(final BigInteger target, final boolean findValue) {
+		final Lookup result = new Lookup();
+		if (findValue) {
+			result.providers.addAll(providers(target));
+			if (!result.providers.isEmpty()) {
+				return result;
+			}
+		}
+
+		// Candidates sorted by distance to the target
+		TreeMap<BigInteger, Contact> shortlist = new TreeMap<BigInteger, Contact>();
+		for (Contact c: table.closest(target, k)) {
+			shortlist.put(c.id.xor(target), c);
+		}
+		HashSet<BigInteger> queried = new HashSet<BigInteger>();
+
+		while (true) {
+			// Query up to alpha of the k closest candidates that have not been asked yet
+			ArrayList<Contact> round = new ArrayList<Contact>();
+			int position = 0;
+			for (Contact c: shortlist.values()) {
+				if (position++ >= k || round.size() == alpha) {
+					break;
+				}
+				if (!queried.contains(c.id)) {
+					round.add(c);
+				}
+			}
+			// The lookup ends when the k closest nodes have all been asked
+			if (round.isEmpty()) {
+				break;
+			}
+			result.hops++;
+
+			ArrayList<Future<String[]>> replies = new ArrayList<Future<String[]>>();
+			for (final Contact c: round) {
+				queried.add(c.id);
+				replies.add(rpcs.submit(new Callable<String[]>() {
+					public String[] call() {
+						return rpc(c, findValue ? "FIND_VALUE" : "FIND_NODE", target.toString(16));
+					}
+				}));
+			}
+
+			boolean found = false;
+			for (int i = 0; i < round.size(); i++) {
+				String[] reply;
+				try {
+					reply = replies.get(i).get();
+				} catch (InterruptedException | ExecutionException e) {
+					reply = null;
+				}
+				result.contacted++;
+
+				if (reply == null) {
+					// Nodes that don't answer are not part of the result
+					shortlist.remove(round.get(i).id.xor(target));
+				}
+				else if (reply[0].equals("VALUE")) {
+					for (int j = 4; j < reply.length; j++) {
+						if (!result.providers.contains(reply[j])) {
+							result.providers.add(reply[j]);
+						}
+					}
+					found = true;
+				}
+				else if (reply[0].equals("NODES")) {
+					for (int j = 4; j < reply.length; j++) {
+						Contact c = Contact.decode(reply[j]);
+						if (c != null && !c.id.equals(self.id) && !shortlist.containsKey(c.id.xor(target))) {
+							shortlist.put(c.id.xor(target), c);
+						}
+					}
+				}
+			}
+			if (found) {
+				break;
+			}
+		}
+
+		for (Contact c: shortlist.values()) {
+			if (result.closest.size() == k) {
+				break;
+			}
+			result.closest.add(c);
+		}
+		return result;
+	}
+
+	private String[] rpc(Contact c, String type, String arguments) {
+		// Send a request and wait for its reply, returns null if the node did not answer in time
+		String id = Long.toString(nextRpc.incrementAndGet());
+		ArrayBlockingQueue<String[]> waiting = new ArrayBlockingQueue<String[]>(1);
+		pending.put(id, waiting);
+		send(c, type, id, arguments);
+
+		String[] reply;
+		try {
+			reply = waiting.poll(rpcTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			reply = null;
+		}
+		pending.remove(id);
+
+		// Bootstrap contacts have no ID yet and are not in the routing table
+		if (reply == null && c.id != null) {
+			table.remove(c);
+		}
+		return reply;
+	}
+
+	private void send(Contact c, String type, String rpcId, String arguments) {
+		String message = type + ";" + rpcId + ";" + self.id.toString(16) + ";" + self.port;
+		if (arguments != null && !arguments.isEmpty()) {
+			message += ";" + arguments;
+		}
+		byte[] data = message.getBytes(StandardCharsets.UTF_8);
+		try {
+			socket.send(new DatagramPacket(data, data.length, InetAddress.getByName(c.ip), c.port));
+		} catch (IOException e) {
+			// Treated like a lost datagram, the request times out
+		}
+	}
+
+	private String encodeContacts(BigInteger target, Contact exclude) {
+		StringBuilder contacts = new StringBuilder();
+		if (target == null) {
+			return "";
+		}
+		for (Contact c: table.closest(target, k + 1)) {
+			if (c.id.equals(exclude.id)) {
+				continue;
+			}
+			if (contacts.length() > 0) {
+				contacts.append(";");
+			}
+			contacts.append(c.encode());
+		}
+		return contacts.toString();
+	}
+
+	private synchronized void storeLocal(BigInteger key, String provider) {
+		// When the node is full, expired providers are dropped first and the STORE is ignored if it is still full
+		if (key == null) {
+			return;
+		}
+		HashMap<String, Long> providers = values.get(key);
+		if (providers == null) {
+			if (values.size() >= maxKeys) {
+				expireValues();
+			}
+			if (values.size() >= maxKeys) {
+				log.debug("DHT node is storing too many keys, key not stored", "key", key.toString(16), "provider", provider);
+				return;
+			}
+			providers = new HashMap<String, Long>();
+			values.put(key, providers);
+		}
+		if (providers.size() >= maxProviders && !providers.containsKey(provider)) {
+			expire(providers);
+		}
+		if (providers.size() < maxProviders || providers.containsKey(provider)) {
+			providers.put(provider, System.currentTimeMillis() + valueTimeout);
+		}
+	}
+
+	private synchronized List<String> providers(BigInteger key) {
+		// Returns the providers stored on this node for the key, dropping expired ones
+		HashMap<String, Long> providers = key == null ? null : values.get(key);
+		if (providers == null) {
+			return new ArrayList<String>();
+		}
+		expire(providers);
+		if (providers.isEmpty()) {
+			values.remove(key);
+		}
+		return new ArrayList<String>(providers.keySet());
+	}
+
+	private synchronized void expireValues() {
+		// Drop expired providers of every key, and keys with no providers left
+		Iterator<HashMap<String, Long>> it = values.values().iterator();
+		while (it.hasNext()) {
+			HashMap<String, Long> providers = it.next();
+			expire(providers);
+			if (providers.isEmpty()) {
+				it.remove();
+			}
+		}
+	}
+
+	private static void expire(HashMap<String, Long> providers) {
+		long now = System.currentTimeMillis();
+		Iterator<Long> it = providers.values().iterator();
+		while (it.hasNext()) {
+			if (it.next() < now) {
+				it.remove();
+			}
+		}
+	}
+
+	void await() throws InterruptedException, ExecutionException {
+		// Waits until the joins and publishes queued so far are done
+		publisher.submit(new Runnable() {
+			public void run() {
+			}
+		}).get();
+	}
+
+	private static BigInteger parseId(String hex) {
+		// Returns null unless hex is an ID or key in the 160 bit space
+		try {
+			BigInteger id = new BigInteger(hex, 16);
+			return Contact.validId(id) ? id : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public void stopNode() {
+		running = false;
+		t.interrupt();
+		publisher.shutdownNow();
+		rpcs.shutdownNow();
+		socket.close();
+		System.out.println("Stopped DHT node");
+	}
+}
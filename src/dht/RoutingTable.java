@@ -0,0 +1,107 @@
+package src.dht;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+public class RoutingTable {
+	// Kademlia routing table with one k-bucket for each bit of the 160 bit ID space
+	// Bucket i holds contacts whose XOR distance from this node has its highest bit at position i
+	// Each bucket is ordered from least to most recently seen, and full buckets keep new contacts as replacements
+
+	private BigInteger self;
+	private int k;
+	private ArrayList<LinkedList<Contact>> buckets, replacements;
+
+	public RoutingTable(BigInteger id, int bucketSize) {
+		self = id;
+		k = bucketSize;
+		buckets = new ArrayList<LinkedList<Contact>>();
+		replacements = new ArrayList<LinkedList<Contact>>();
+		for (int i = 0; i < 160; i++) {
+			buckets.add(new LinkedList<Contact>());
+			replacements.add(new LinkedList<Contact>());
+		}
+	}
+
+	public synchronized void update(Contact c) {
+		// Called whenever a message is recieved from a node
+		if (c.id.equals(self)) {
+			return;
+		}
+		LinkedList<Contact> bucket = buckets.get(bucketIndex(c.id));
+		Contact existing = find(bucket, c.id);
+		if (existing != null) {
+			// Move the node to the most recently seen end, its address may have changed
+			bucket.remove(existing);
+			bucket.addLast(c);
+		}
+		else if (bucket.size() < k) {
+			bucket.addLast(c);
+		}
+		else {
+			// Long lived nodes are kept, the new node replaces one of them if it stops responding
+			LinkedList<Contact> cache = replacements.get(bucketIndex(c.id));
+			Contact cached = find(cache, c.id);
+			if (cached != null) {
+				cache.remove(cached);
+			}
+			cache.addLast(c);
+			if (cache.size() > k) {
+				cache.removeFirst();
+			}
+		}
+	}
+
+	public synchronized void remove(Contact c) {
+		// Called when a node did not answer a request
+		int index = bucketIndex(c.id);
+		LinkedList<Contact> bucket = buckets.get(index);
+		Contact existing = find(bucket, c.id);
+		if (existing != null) {
+			bucket.remove(existing);
+			// Fill the free slot with the most recently seen replacement
+			LinkedList<Contact> cache = replacements.get(index);
+			if (!cache.isEmpty()) {
+				bucket.addLast(cache.removeLast());
+			}
+		}
+	}
+
+	public synchronized List<Contact> closest(final BigInteger target, int count) {
+		ArrayList<Contact> all = new ArrayList<Contact>();
+		for (LinkedList<Contact> bucket: buckets) {
+			all.addAll(bucket);
+		}
+		Collections.sort(all, new Comparator<Contact>() {
+			public int compare(Contact a, Contact b) {
+				return a.id.xor(target).compareTo(b.id.xor(target));
+			}
+		});
+		return new ArrayList<Contact>(all.subList(0, Math.min(count, all.size())));
+	}
+
+	public synchronized int size() {
+		int size = 0;
+		for (LinkedList<Contact> bucket: buckets) {
+			size += bucket.size();
+		}
+		return size;
+	}
+
+	private int bucketIndex(BigInteger id) {
+		return Math.max(id.xor(self).bitLength() - 1, 0);
+	}
+
+	private static Contact find(LinkedList<Contact> list, BigInteger id) {
+		for (Contact c: list) {
+			if (c.id.equals(id)) {
+				return c;
+			}
+		}
+		return null;
+	}
+}
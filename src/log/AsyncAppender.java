@@ -0,0 +1,140 @@
+package src.log;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class AsyncAppender implements Runnable {
+	// Thread for writing log records to a file that is rotated when it gets too large
+	// Records wait in a fixed size circular buffer; when it is full new records are dropped and counted
+	// instead of making the logging thread wait
+
+	private ArrayBlockingQueue<LogRecord> buffer;
+	private AtomicLong dropped;
+	private File file;
+	private long maxBytes, written;
+	private int maxFiles;
+	private Writer out;
+	private Thread t;
+	private volatile boolean running;
+
+	AsyncAppender(File f, long size, int files, int capacity) {
+		file = f;
+		maxBytes = size;
+		maxFiles = files;
+		buffer = new ArrayBlockingQueue<LogRecord>(capacity);
+		dropped = new AtomicLong();
+	}
+
+	boolean open() {
+		// Continue the existing log file if there is one
+		try {
+			if (file.getParentFile() != null) {
+				file.getParentFile().mkdirs();
+			}
+			written = file.length();
+			out = new BufferedWriter(new FileWriter(file, true));
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	void start() {
+		if (t == null) {
+			running = true;
+			t = new Thread (this, "Log Appender");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	void append(LogRecord record) {
+		if (!buffer.offer(record)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	long getDropped() {
+		return dropped.get();
+	}
+
+	public void run() {
+		ArrayList<LogRecord> batch = new ArrayList<LogRecord>();
+		long droppedReported = 0;
+		while (running || !buffer.isEmpty()) {
+			try {
+				// Wait for a record, then take everything that is queued behind it
+				LogRecord first = buffer.poll(500, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					buffer.drainTo(batch);
+				}
+			} catch (InterruptedException e) {
+				// stop was called, write what is left and exit
+				running = false;
+			}
+
+			try {
+				for (LogRecord record: batch) {
+					write(record.format());
+				}
+				batch.clear();
+
+				// Note lost records in the log itself
+				long lost = dropped.get();
+				if (lost != droppedReported) {
+					write(new LogRecord(System.currentTimeMillis(), Level.WARN, "log", "Log Appender", "Log buffer full, records dropped", new Object[] {"dropped", lost - droppedReported}).format());
+					droppedReported = lost;
+				}
+
+				// Flush once the buffer is drained, so bursts are written together
+				if (buffer.isEmpty()) {
+					out.flush();
+				}
+			} catch (IOException e) {
+				// The disk is full or the file was removed, keep draining so callers are never blocked
+				batch.clear();
+			}
+		}
+
+		try {
+			out.close();
+		} catch (IOException e) {
+			// Nothing else can be done with the log file
+		}
+	}
+
+	private void write(String line) throws IOException {
+		if (written + line.length() + 1 > maxBytes) {
+			rotate();
+		}
+		out.write(line);
+		out.write('\n');
+		written += line.length() + 1;
+	}
+
+	private void rotate() throws IOException {
+		// p2p.log -> p2p.log.1 -> p2p.log.2 ... and the oldest file is deleted
+		out.close();
+		new File(file.getPath() + "." + (maxFiles - 1)).delete();
+		for (int i = maxFiles - 2; i >= 1; i--) {
+			new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+		}
+		file.renameTo(new File(file.getPath() + ".1"));
+		out = new BufferedWriter(new FileWriter(file));
+		written = 0;
+	}
+
+	void stop() {
+		running = false;
+		t.interrupt();
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
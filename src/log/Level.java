@@ -0,0 +1,6 @@
+package src.log;
+
+public enum Level {
+	// Severity of a log record, records below the configured level are discarded
+	DEBUG, INFO, WARN, ERROR
+}
@@ -0,0 +1,55 @@
+package src.log;
+
+import java.io.File;
+
+public class Log {
+	// Entry point for logging: creates component loggers and owns the shared asynchronous appender
+	// Console output is kept for user-facing events, protocol details go to the log file
+
+	private static volatile Level level = Level.INFO;
+	private static volatile AsyncAppender appender;
+
+	public static Logger getLogger(String component) {
+		return new Logger(component);
+	}
+
+	public static boolean start(String path, long maxBytes, int maxFiles, int bufferSize) {
+		// Records logged before start or after stop are discarded
+		AsyncAppender a = new AsyncAppender(new File(path), maxBytes, maxFiles, bufferSize);
+		if (!a.open()) {
+			return false;
+		}
+		a.start();
+		appender = a;
+		return true;
+	}
+
+	public static void stop() {
+		// Write the remaining records before the peer exits
+		AsyncAppender a = appender;
+		appender = null;
+		if (a != null) {
+			a.stop();
+		}
+	}
+
+	public static Level getLevel() {
+		return level;
+	}
+
+	public static void setLevel(Level l) {
+		level = l;
+	}
+
+	public static long getDropped() {
+		AsyncAppender a = appender;
+		return a == null ? 0 : a.getDropped();
+	}
+
+	static void append(LogRecord record) {
+		AsyncAppender a = appender;
+		if (a != null) {
+			a.append(record);
+		}
+	}
+}
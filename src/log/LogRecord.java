@@ -0,0 +1,48 @@
+package src.log;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+class LogRecord {
+	// Utility class for storing one log record until the appender writes it
+
+	// Fixed width so every record's time has milliseconds
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+	long time;
+	Level level;
+	String component, thread, message;
+	Object[] fields;
+
+	LogRecord(long ti, Level l, String c, String th, String m, Object[] f) {
+		time = ti;
+		level = l;
+		component = c;
+		thread = th;
+		message = m;
+		fields = f;
+	}
+
+	String format() {
+		// <time> <level> <component> [<thread>] "<message>" <name>=<value>...
+		StringBuilder line = new StringBuilder();
+		line.append(TIME.format(Instant.ofEpochMilli(time))).append(' ');
+		line.append(level).append(' ');
+		line.append(component).append(' ');
+		line.append('[').append(thread).append("] ");
+		line.append(quote(message));
+		for (int i = 0; i + 1 < fields.length; i += 2) {
+			line.append(' ').append(fields[i]).append('=').append(quote(String.valueOf(fields[i + 1])));
+		}
+		return line.toString();
+	}
+
+	private static String quote(String value) {
+		// Values with spaces, quotes or separators are quoted so each record stays on one parseable line
+		if (!value.isEmpty() && value.matches("[^\\s\"=]+")) {
+			return value;
+		}
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r") + "\"";
+	}
+}
@@ -0,0 +1,43 @@
+package src.log;
+
+public class Logger {
+	// Logger for one component of the peer, such as "neighbor.incoming"
+	// Records are handed to the asynchronous appender, so logging never blocks the calling thread
+	//
+	// Fields are passed as alternating names and values:
+	// log.debug("Recieved new query", "qid", qid, "from", clientIP);
+
+	private String component;
+
+	Logger(String c) {
+		component = c;
+	}
+
+	public boolean isEnabled(Level level) {
+		return level.compareTo(Log.getLevel()) >= 0;
+	}
+
+	public void debug(String message, Object... fields) {
+		log(Level.DEBUG, message, fields);
+	}
+
+	public void info(String message, Object... fields) {
+		log(Level.INFO, message, fields);
+	}
+
+	public void warn(String message, Object... fields) {
+		log(Level.WARN, message, fields);
+	}
+
+	public void error(String message, Object... fields) {
+		log(Level.ERROR, message, fields);
+	}
+
+	private void log(Level level, String message, Object[] fields) {
+		if (!isEnabled(level)) {
+			return;
+		}
+		// Formatting happens on the appender thread, only the arguments are captured here
+		Log.append(new LogRecord(System.currentTimeMillis(), level, component, Thread.currentThread().getName(), message, fields));
+	}
+}
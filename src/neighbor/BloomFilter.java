@@ -0,0 +1,125 @@
+package src.neighbor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+
+public class BloomFilter {
+	// Bloom filter of filenames whose size is a power of two
+	// Each name sets k bits chosen by double hashing, so lookups have no false negatives
+	// A filter can be resized to another power of two without false negatives, since a name's bit in the
+	// smaller filter is its bit in the larger one modulo the smaller size
+
+	private long[] bits;
+	private int size, hashes;
+
+	public BloomFilter(int s, int k) {
+		size = s;
+		hashes = k;
+		bits = new long[(size + 63) / 64];
+	}
+
+	public static int bitsFor(long names, double falsePositive, int min, int max) {
+		// Bits needed for names at the false positive rate, rounded up to a power of two
+		double bits = -names * Math.log(falsePositive) / (Math.log(2) * Math.log(2));
+		int size = min;
+		while (size < bits && size < max) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	public static int hashesFor(double falsePositive) {
+		// The best number of hashes only depends on the false positive rate, so every filter uses the same one
+		return Math.max(1, (int) Math.round(-Math.log(falsePositive) / Math.log(2)));
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public synchronized BloomFilter resize(int s) {
+		// Smaller filters fold the upper halves onto the lower ones, larger filters repeat the bits
+		BloomFilter filter = new BloomFilter(s, hashes);
+		if (s <= size) {
+			for (int i = 0; i < bits.length; i++) {
+				filter.bits[i % filter.bits.length] |= bits[i];
+			}
+		}
+		else {
+			for (int i = 0; i < filter.bits.length; i++) {
+				filter.bits[i] = bits[i % bits.length];
+			}
+		}
+		return filter;
+	}
+
+	public synchronized void add(String name) {
+		int h1 = name.hashCode(), h2 = secondHash(name);
+		for (int i = 0; i < hashes; i++) {
+			int bit = Math.floorMod(h1 + i * h2, size);
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	public synchronized boolean mightContain(String name) {
+		int h1 = name.hashCode(), h2 = secondHash(name);
+		for (int i = 0; i < hashes; i++) {
+			int bit = Math.floorMod(h1 + i * h2, size);
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public synchronized void or(BloomFilter other) {
+		// Merge another filter of the same size into this one
+		long[] otherBits = other.copyBits();
+		for (int i = 0; i < bits.length && i < otherBits.length; i++) {
+			bits[i] |= otherBits[i];
+		}
+	}
+
+	public synchronized int contentHash() {
+		return Arrays.hashCode(bits);
+	}
+
+	public synchronized String encode() {
+		ByteBuffer buffer = ByteBuffer.allocate(bits.length * 8);
+		buffer.asLongBuffer().put(bits);
+		return Base64.getEncoder().encodeToString(buffer.array());
+	}
+
+	public static BloomFilter decode(String encoded, int k, int min, int max) {
+		// The size is the length of the encoded filter
+		// Returns null if it is not a power of two between min and max bits
+		byte[] bytes;
+		try {
+			bytes = Base64.getDecoder().decode(encoded);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		long s = bytes.length * 8L;
+		if (s < min || s > max || Long.bitCount(s) != 1) {
+			return null;
+		}
+		BloomFilter filter = new BloomFilter((int) s, k);
+		ByteBuffer.wrap(bytes).asLongBuffer().get(filter.bits);
+		return filter;
+	}
+
+	private synchronized long[] copyBits() {
+		return bits.clone();
+	}
+
+	private static int secondHash(String name) {
+		// FNV-1a over the characters, forced odd so the k bits differ for power of two sizes
+		int h = 0x811c9dc5;
+		for (int i = 0; i < name.length(); i++) {
+			h ^= name.charAt(i);
+			h *= 0x01000193;
+		}
+		return h | 1;
+	}
+}
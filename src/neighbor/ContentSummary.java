@@ -0,0 +1,93 @@
+package src.neighbor;
+
+import src.config.ConfigObject;
+
+public class ContentSummary {
+	// Attenuated Bloom filter summarizing the files that can be found through this host
+	// Level 0 holds the files on this host, level i holds the files i hops away through its outgoing neighbors
+	// Level 0 is sized for the files on this host, and is rebuilt twice as large when they outgrow it
+	// Every other level is sized for the filters merged into it
+
+	private ConfigObject config;
+	private volatile BloomFilter local;
+	private int hashes;
+	// Files in the local filter, and how many it was sized for
+	private long count, capacity;
+
+	public ContentSummary(ConfigObject c) {
+		config = c;
+		hashes = BloomFilter.hashesFor(config.summaryFalsePositive);
+		capacity = config.shared_files.size() + config.files.obtained().size();
+		local = new BloomFilter(bits(capacity), hashes);
+	}
+
+	public synchronized void addLocal(String filename) {
+		// Local files are added as they appear instead of rebuilding the filter, unless it is full
+		count++;
+		if (count <= capacity) {
+			local.add(filename);
+			return;
+		}
+
+		// The new file is already in the shared or obtained files
+		capacity = Math.max(count, capacity * 2);
+		BloomFilter filter = new BloomFilter(bits(capacity), hashes);
+		count = 0;
+		for (String f: config.shared_files) {
+			filter.add(f);
+			count++;
+		}
+		for (String f: config.files.obtained()) {
+			filter.add(f);
+			count++;
+		}
+		local = filter;
+	}
+
+	public BloomFilter[] levels() {
+		// Each level after the first merges the level above it from every outgoing neighbor's summary
+		// Each neighbor's filter was sized for its own files, so the merged filter is as large as all of them together
+		BloomFilter[] levels = new BloomFilter[config.summaryDepth];
+		levels[0] = local;
+		for (int i = 1; i < levels.length; i++) {
+			long bits = 0;
+			for (Neighbor n: config.neighbors) {
+				BloomFilter[] summary = n.summary;
+				if (summary != null && summary[i - 1] != null) {
+					bits += summary[i - 1].size();
+				}
+			}
+			int size = config.summaryMinBits;
+			while (size < bits && size < config.summaryMaxBits) {
+				size <<= 1;
+			}
+			levels[i] = new BloomFilter(size, hashes);
+			for (Neighbor n: config.neighbors) {
+				BloomFilter[] summary = n.summary;
+				if (summary != null && summary[i - 1] != null) {
+					levels[i].or(summary[i - 1].resize(size));
+				}
+			}
+		}
+		return levels;
+	}
+
+	public static BloomFilter decode(ConfigObject config, String encoded) {
+		// Returns null if the filter is not valid
+		return BloomFilter.decode(encoded, BloomFilter.hashesFor(config.summaryFalsePositive), config.summaryMinBits, config.summaryMaxBits);
+	}
+
+	public static int level(BloomFilter[] summary, String filename) {
+		// Returns the first level that may contain the file, which is the fewest hops it may be away, or -1
+		for (int i = 0; i < summary.length; i++) {
+			if (summary[i] != null && summary[i].mightContain(filename)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int bits(long files) {
+		return BloomFilter.bitsFor(files, config.summaryFalsePositive, config.summaryMinBits, config.summaryMaxBits);
+	}
+}
@@ -0,0 +1,631 @@
+package src.neighbor;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import src.config.ConfigObject;
+import src.log.Log;
+import src.log.Logger;
+import src.sharing.FileDownload;
+import src.sharing.Query;
+
+public class DatagramTransport implements Runnable {
+	// Thread for sending queries, responses, heartbeats and peer exchanges to neighbors over UDP
+	// It listens on the same port number as the neighbor server, so any peer can send it queries
+	// Outgoing neighbors only use it after the "transport udp" command, otherwise they keep their TCP connections
+	//
+	// One thread serves every UDP neighbor, so a neighbor costs no connection or thread of its own
+	// Messages to the same address are batched into one datagram, and every datagram is acknowledged
+	// Datagrams that are not acknowledged are sent again, so a lost query or response is retried at each hop
+	// Content summaries are too large for a datagram and are still only exchanged over TCP connections
+	//
+	// Datagram format:
+	// DATA: 0, sequence number (4 bytes), messages...
+	// ACK:  1, sequence number (4 bytes)
+	//
+	// Message format, strings are a varint length followed by UTF-8 bytes:
+	// Q, qid, filename
+	// R, qid, IPv4 address (4 bytes), port (2 bytes), filename
+	// H, 0 = ServerAlive?, 1 = ClientAlive?, 2 = ACK
+	// P or p, peer list (P expects a reply with p)
+	// L, any other protocol line
+
+	private static final Logger log = Log.getLogger("neighbor.datagram");
+
+	private static final byte DATA = 0, ACK = 1;
+	private static final String[] heartbeats = {"H:ServerAlive?", "H:ClientAlive?", "H:ACK"};
+
+	private static class Pending {
+		// A sent datagram waiting for its acknowledgement
+		byte[] packet;
+		long sentTime, resendTime;
+		int attempts;
+		// Times the datagram may be sent again
+		int retries;
+		// Run if the datagram is never acknowledged
+		ArrayList<Runnable> fallbacks;
+	}
+
+	private static class Outbox {
+		// Messages waiting to be sent to one address, and datagrams sent to it that were not acknowledged
+		InetSocketAddress address;
+		ByteArrayOutputStream batch = new ByteArrayOutputStream();
+		ArrayList<Runnable> batchFallbacks = new ArrayList<Runnable>();
+		long firstQueued;
+		// Last time anything was sent to or recieved from this address
+		long lastActive;
+		// Rate limit for queries recieved from this address
+		TokenBucket queryLimit;
+		LinkedHashMap<Integer, Pending> unacked = new LinkedHashMap<Integer, Pending>();
+		// Sequence numbers recently recieved from this address, to drop datagrams that were sent twice
+		LinkedHashMap<Integer, Boolean> recieved = new LinkedHashMap<Integer, Boolean>() {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+				return size() > 1024;
+			}
+		};
+	}
+
+	private ConfigObject config;
+	private QidSet qids;
+	private Semaphore download;
+	private DatagramChannel channel;
+	private Selector selector;
+	private Thread t;
+	private HashMap<InetSocketAddress, Outbox> outboxes;
+	private LinkedHashMap<InetSocketAddress, PrintWriter> writers;
+	// Addresses that acknowledged a datagram from this peer, so they are known to be listening
+	private LinkedHashMap<InetSocketAddress, Boolean> acknowledged;
+	private int sequence;
+
+	public DatagramTransport(ConfigObject c, QidSet q, Semaphore d) {
+		config = c;
+		qids = q;
+		download = d;
+		outboxes = new HashMap<InetSocketAddress, Outbox>();
+		// Routes hold on to the writers they need, so old writers can be forgotten
+		writers = new LinkedHashMap<InetSocketAddress, PrintWriter>() {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, PrintWriter> eldest) {
+				return size() > 1024;
+			}
+		};
+		acknowledged = new LinkedHashMap<InetSocketAddress, Boolean>() {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Boolean> eldest) {
+				return size() > 1024;
+			}
+		};
+		// Start at a random sequence number so a restarted peer is not mistaken for duplicates
+		sequence = new Random().nextInt();
+
+		try {
+			channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(config.neighbor_port));
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			System.out.println("Could not open socket for UDP neighbor messages on port " + config.neighbor_port);
+			channel = null;
+		}
+	}
+
+	public boolean isBound() {
+		return channel != null;
+	}
+
+	public boolean isRunning() {
+		// False once the peer left, messages are no longer sent
+		return channel != null && channel.isOpen();
+	}
+
+	public Thread start() {
+		if (t == null && channel != null) {
+			t = new Thread (this, "Datagram Transport");
+			t.start();
+		}
+		return t;
+	}
+
+	public void run() {
+		ByteBuffer buffer = ByteBuffer.allocate(65536);
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				// Wake up often enough to send batches on time
+				selector.select(config.udpBatchDelay);
+				selector.selectedKeys().clear();
+
+				SocketAddress from;
+				while ((from = channel.receive(buffer)) != null) {
+					buffer.flip();
+					handlePacket((InetSocketAddress) from, buffer);
+					buffer.clear();
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				// Closing the channel causes an IO exception
+				// Thread is now interrupted and will exit
+				continue;
+			}
+
+			long now = System.currentTimeMillis();
+			serviceNeighbors(now);
+			flush(now);
+		}
+	}
+
+	private void serviceNeighbors(long now) {
+		for (Neighbor n: config.neighbors) {
+			if (!n.udp) {
+				continue;
+			}
+			InetSocketAddress address = addressOf(n);
+
+			// A neighbor that has been silent too long is lost until it answers a heartbeat again
+			if (n.udpAlive && now - n.udpLastHeard > config.udpTimeout) {
+				n.udpAlive = false;
+				n.queries.clear();
+				NeighborRouter.recordError(n, true);
+				log.info("Lost UDP neighbor", "neighbor", address);
+			}
+
+			if (n.udpHeartbeatTime < now) {
+				send(address, "H:ServerAlive?");
+				n.udpHeartbeatTime = now + config.udpHeartbeatInterval;
+			}
+
+			if (!n.udpAlive) {
+				continue;
+			}
+
+			// Periodically share known peers with the neighbor, it replies with the peers it knows
+			if (n.udpExchangeTime < now) {
+				queue(address, exchange((byte) 'P', config.peers.exchangeMessage(config, config.peerExchangeSize)), null);
+				n.udpExchangeTime = now + config.peerExchangeInterval;
+			}
+
+			// Send every waiting query, they are batched into as few datagrams as possible
+			Query query;
+			while ((query = n.queries.poll()) != null) {
+				log.debug("Sending query", "neighbor", address, "qid", query.qid, "file", query.filename);
+				send(address, query.query);
+				NeighborRouter.querySent(config, n, query);
+			}
+		}
+	}
+
+	private void handlePacket(InetSocketAddress from, ByteBuffer packet) {
+		if (packet.remaining() < 5) {
+			return;
+		}
+		byte type = packet.get();
+		int seq = packet.getInt();
+		Neighbor neighbor = neighborAt(from);
+		if (neighbor != null) {
+			neighbor.udpLastHeard = System.currentTimeMillis();
+			if (neighbor.udp && !neighbor.udpAlive) {
+				neighbor.udpAlive = true;
+				NeighborRouter.recordError(neighbor, false);
+				log.info("Reached UDP neighbor", "neighbor", from);
+			}
+		}
+
+		if (type == ACK) {
+			synchronized (outboxes) {
+				Outbox box = outboxes.get(from);
+				Pending p = box == null ? null : box.unacked.remove(seq);
+				if (p != null) {
+					acknowledged.put(from, Boolean.TRUE);
+				}
+				// Only datagrams that were sent once give a reliable round trip time
+				if (p != null && p.attempts == 1 && neighbor != null) {
+					NeighborRouter.recordRtt(neighbor, System.currentTimeMillis() - p.sentTime);
+				}
+			}
+			return;
+		}
+		if (type != DATA) {
+			return;
+		}
+
+		// Acknowledge every copy, since the acknowledgement of the first copy may have been lost
+		sendAck(from, seq);
+		synchronized (outboxes) {
+			if (outbox(from).recieved.put(seq, Boolean.TRUE) != null) {
+				return;
+			}
+		}
+
+		while (packet.hasRemaining()) {
+			byte tag = packet.get();
+			String line;
+			try {
+				line = decode(tag, packet);
+			} catch (RuntimeException e) {
+				log.warn("Malformed datagram recieved", "neighbor", from);
+				return;
+			}
+			// This thread serves every UDP neighbor, so a message it can't handle must not end it
+			try {
+				handleMessage(from, neighbor, tag, line);
+			} catch (RuntimeException e) {
+				log.warn("Malformed message recieved", "neighbor", from, "error", e);
+			}
+		}
+	}
+
+	private void handleMessage(InetSocketAddress from, Neighbor neighbor, byte tag, String line) {
+		String[] splitLine = line.replaceAll(";", ":").split(":");
+		String source = from.toString();
+
+		switch (splitLine[0]) {
+		case "Q":
+			TokenBucket limit;
+			synchronized (outboxes) {
+				Outbox box = outbox(from);
+				if (box.queryLimit == null) {
+					box.queryLimit = config.admission.connectionLimit();
+				}
+				limit = box.queryLimit;
+			}
+			if (config.admission.admit(limit, source)) {
+				NeighborRouter.handleQuery(config, qids, splitLine, writerFor(from), source);
+			}
+			break;
+		case "R":
+			// Downloads get their own thread so this thread can keep serving every other neighbor
+			NeighborRouter.handleResponse(config, neighbor, splitLine, line, source, new RouteTable.ResponseListener() {
+				public void onResponse(final String qid, final String fileServer, final int filePort, final String filename) {
+					new Thread(new Runnable() {
+						public void run() {
+							FileDownload.download(config, download, fileServer, filePort, filename);
+						}
+					}, "Datagram Download").start();
+				}
+			});
+			break;
+		case "H":
+			if (line.equals("H:ServerAlive?")) {
+				send(from, "H:ACK");
+				log.debug("Answered heartbeat", "neighbor", source);
+			}
+			break;
+		case "P":
+			if (config.peers.merge(config, line) == null) {
+				log.warn("Malformed peer exchange recieved", "neighbor", source);
+			}
+			else if (tag == 'P') {
+				queue(from, exchange((byte) 'p', config.peers.exchangeMessage(config, config.peerExchangeSize)), null);
+			}
+			break;
+		}
+	}
+
+	private Neighbor neighborAt(InetSocketAddress address) {
+		for (Neighbor n: config.neighbors) {
+			if (n.neighbor_port == address.getPort() && addressOf(n).equals(address)) {
+				return n;
+			}
+		}
+		return null;
+	}
+
+	private static InetSocketAddress addressOf(Neighbor n) {
+		// Resolved once, since it is needed for every datagram
+		if (n.udpAddress == null) {
+			n.udpAddress = new InetSocketAddress(n.ip, n.neighbor_port);
+		}
+		return n.udpAddress;
+	}
+
+	private PrintWriter writerFor(final InetSocketAddress address) {
+		// Routes send responses back with println, so queries from UDP neighbors get a writer that sends each line
+		synchronized (writers) {
+			PrintWriter out = writers.get(address);
+			if (out == null) {
+				out = new PrintWriter(new Writer() {
+					private StringBuilder line = new StringBuilder();
+
+					public void write(char[] chars, int offset, int length) {
+						line.append(chars, offset, length);
+					}
+
+					public void flush() {
+						// println flushes after the line separator, send every complete line
+						int end;
+						while ((end = line.indexOf("\n")) >= 0) {
+							String l = line.substring(0, end);
+							line.delete(0, end + 1);
+							send(address, l.endsWith("\r") ? l.substring(0, l.length() - 1) : l);
+						}
+					}
+
+					public void close() {}
+				}, true);
+				writers.put(address, out);
+			}
+			return out;
+		}
+	}
+
+	public void send(InetSocketAddress address, String line) {
+		// Can be called from any thread, the message is sent with the next batch to this address
+		queue(address, encode(line), null);
+	}
+
+	public void send(InetSocketAddress address, String line, Runnable fallback) {
+		// Like send, and fallback is run by the transport thread if the datagram carrying the message is never acknowledged
+		queue(address, encode(line), fallback);
+	}
+
+	private void queue(InetSocketAddress address, byte[] message, Runnable fallback) {
+		synchronized (outboxes) {
+			Outbox box = outbox(address);
+			// Close the current batch first if this message would not fit
+			if (box.batch.size() > 0 && box.batch.size() + message.length > config.udpPacketSize - 5) {
+				closeBatch(box);
+			}
+			if (box.batch.size() == 0) {
+				box.firstQueued = System.currentTimeMillis();
+			}
+			box.batch.write(message, 0, message.length);
+			if (fallback != null) {
+				box.batchFallbacks.add(fallback);
+			}
+		}
+	}
+
+	private void flush(long now) {
+		ArrayList<Runnable> failed = new ArrayList<Runnable>();
+		synchronized (outboxes) {
+			Iterator<Outbox> it = outboxes.values().iterator();
+			while (it.hasNext()) {
+				Outbox box = it.next();
+				if (box.batch.size() > 0 && now - box.firstQueued >= config.udpBatchDelay) {
+					closeBatch(box);
+				}
+
+				Iterator<Pending> pending = box.unacked.values().iterator();
+				while (pending.hasNext()) {
+					Pending p = pending.next();
+					if (p.resendTime > now) {
+						continue;
+					}
+					if (p.attempts > p.retries) {
+						// Give up on the datagram, its queries and responses are lost
+						pending.remove();
+						Neighbor n = neighborAt(box.address);
+						if (n != null) {
+							NeighborRouter.recordError(n, true);
+						}
+						log.debug("Datagram was not acknowledged", "neighbor", box.address, "attempts", p.attempts);
+						if (p.fallbacks != null) {
+							failed.addAll(p.fallbacks);
+						}
+						continue;
+					}
+					if (p.attempts == 0) {
+						p.sentTime = now;
+					}
+					transmit(box.address, p.packet);
+					p.resendTime = now + ((long) config.udpRetryDelay << p.attempts);
+					p.attempts++;
+				}
+
+				// Forget addresses with nothing left to send once they were quiet for udpTimeout
+				// This is long after the last copy of any datagram they sent could arrive, and long enough
+				// for their query limit to fill up again
+				if (box.batch.size() == 0 && box.unacked.isEmpty() && now - box.lastActive >= config.udpTimeout) {
+					it.remove();
+				}
+			}
+		}
+
+		// Fallbacks may send messages of their own, so they run after the outboxes are released
+		for (Runnable fallback: failed) {
+			fallback.run();
+		}
+	}
+
+	private void closeBatch(Outbox box) {
+		// The datagram is sent by the transport thread in flush, since interrupting a thread that is
+		// sending on the channel would close it
+		byte[] messages = box.batch.toByteArray();
+		box.batch.reset();
+
+		Pending p = new Pending();
+		if (!box.batchFallbacks.isEmpty()) {
+			p.fallbacks = box.batchFallbacks;
+			box.batchFallbacks = new ArrayList<Runnable>();
+		}
+		// Only neighbors and addresses that acknowledged before get datagrams sent again
+		// Any other address may not be a peer at all, for example the spoofed source of a heartbeat or the
+		// originator named in a query, so it gets one datagram per batch and nothing more
+		if (neighborAt(box.address) != null || acknowledged.containsKey(box.address)) {
+			p.retries = config.udpRetries;
+		}
+		int seq = sequence++;
+		p.packet = ByteBuffer.allocate(5 + messages.length).put(DATA).putInt(seq).put(messages).array();
+		box.unacked.put(seq, p);
+	}
+
+	private void sendAck(InetSocketAddress address, int seq) {
+		transmit(address, ByteBuffer.allocate(5).put(ACK).putInt(seq).array());
+	}
+
+	private void transmit(InetSocketAddress address, byte[] packet) {
+		try {
+			channel.send(ByteBuffer.wrap(packet), address);
+		} catch (IOException e) {
+			// Treated like a lost datagram, it is sent again if it was not acknowledged
+		}
+	}
+
+	private Outbox outbox(InetSocketAddress address) {
+		Outbox box = outboxes.get(address);
+		if (box == null) {
+			box = new Outbox();
+			box.address = address;
+			outboxes.put(address, box);
+		}
+		box.lastActive = System.currentTimeMillis();
+		return box;
+	}
+
+	private static byte[] encode(String line) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		String[] split = line.replaceAll(";", ":").split(":");
+
+		for (int i = 0; i < heartbeats.length; i++) {
+			if (line.equals(heartbeats[i])) {
+				out.write('H');
+				out.write(i);
+				return out.toByteArray();
+			}
+		}
+		if (split[0].equals("Q") && split.length == 3) {
+			out.write('Q');
+			writeString(out, split[1]);
+			writeString(out, split[2]);
+			return out.toByteArray();
+		}
+		if (split[0].equals("R") && split.length == 5) {
+			byte[] ip = ipv4(split[2]);
+			int port = parsePort(split[3]);
+			if (ip != null && port >= 0) {
+				out.write('R');
+				writeString(out, split[1]);
+				out.write(ip, 0, 4);
+				out.write(port >> 8);
+				out.write(port);
+				writeString(out, split[4]);
+				return out.toByteArray();
+			}
+		}
+		out.write('L');
+		writeString(out, line);
+		return out.toByteArray();
+	}
+
+	private static byte[] exchange(byte tag, String line) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(tag);
+		writeString(out, line);
+		return out.toByteArray();
+	}
+
+	private static String decode(byte tag, ByteBuffer in) {
+		switch (tag) {
+		case 'Q':
+			return "Q:" + readString(in) + ";" + readString(in);
+		case 'R':
+			String qid = readString(in);
+			String ip = (in.get() & 0xff) + "." + (in.get() & 0xff) + "." + (in.get() & 0xff) + "." + (in.get() & 0xff);
+			int port = in.getShort() & 0xffff;
+			return "R:" + qid + ";" + ip + ":" + port + ";" + readString(in);
+		case 'H':
+			return heartbeats[in.get()];
+		case 'P':
+		case 'p':
+		case 'L':
+			return readString(in);
+		default:
+			throw new IllegalArgumentException("Unknown message tag " + tag);
+		}
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String s) {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		// Length as a varint, 7 bits per byte
+		int length = b.length;
+		while (length >= 0x80) {
+			out.write((length & 0x7f) | 0x80);
+			length >>>= 7;
+		}
+		out.write(length);
+		out.write(b, 0, b.length);
+	}
+
+	private static String readString(ByteBuffer in) {
+		// The length is checked against the rest of the datagram before anything is allocated
+		// A 32 bit length never takes more than 5 bytes
+		int length = 0;
+		for (int shift = 0; ; shift += 7) {
+			if (shift > 28) {
+				throw new IllegalArgumentException("String length is longer than 5 bytes");
+			}
+			byte b = in.get();
+			length |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		if (length < 0 || length > in.remaining()) {
+			throw new IllegalArgumentException("String length " + length + " is outside the datagram");
+		}
+		byte[] b = new byte[length];
+		in.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] ipv4(String ip) {
+		String[] parts = ip.split("\\.");
+		if (parts.length != 4) {
+			return null;
+		}
+		byte[] b = new byte[4];
+		for (int i = 0; i < 4; i++) {
+			int part = parsePort(parts[i]);
+			if (part < 0 || part > 255) {
+				return null;
+			}
+			b[i] = (byte) part;
+		}
+		return b;
+	}
+
+	private static int parsePort(String s) {
+		// Returns -1 unless s is a number that fits in 16 bits
+		try {
+			int value = Integer.parseInt(s);
+			return value >= 0 && value <= 0xffff ? value : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public void stopTransport() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			if (t != null) {
+				t.interrupt();
+			}
+			selector.close();
+			channel.close();
+			if (t != null) {
+				t.join();
+			}
+			System.out.println("Stopped listening for UDP neighbor messages");
+		} catch (IOException | InterruptedException e) {
+			System.out.println("Unable to stop Datagram Transport");
+		}
+	}
+}
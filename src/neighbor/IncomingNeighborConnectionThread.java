@@ -2,28 +2,33 @@ package src.neighbor;
 
 import java.io.*;
 import java.net.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import src.config.ConfigObject;
-import src.sharing.Query;
+import src.log.Log;
+import src.log.Logger;
 
 public class IncomingNeighborConnectionThread implements Runnable {
 	// Thread for communicating with a connected neighbor
 	// An incoming neighbor is a peer that has this host in its neighbors.txt
 
+	private static final Logger log = Log.getLogger("neighbor.incoming");
+
 	private ConfigObject config;
 	private Socket clientSocket;
 	private Thread t;
 	private String clientIP;
-	private ConcurrentLinkedQueue<String> qids;
+	private QidSet qids;
 	private boolean heartbeatSent = false, heartbeatTimeout = false;
+	private int[] summarySent;
+	private TokenBucket queryLimit;
 
-	public IncomingNeighborConnectionThread(ConfigObject c, ConcurrentLinkedQueue<String> q, Socket s) {
+	public IncomingNeighborConnectionThread(ConfigObject c, QidSet q, Socket s) {
 		config = c;
 		clientSocket = s;
 		clientIP = s.getRemoteSocketAddress().toString();
 		qids = q;
-		System.out.println("Accepted neighbor connection request from " + clientIP);
+		queryLimit = config.admission.connectionLimit();
+		log.info("Accepted neighbor connection", "neighbor", clientIP);
 
 		// Only wait 60 seconds for incoming request from neighbor
 		// Heartbeats are sent after 60 seconds of no queries or heartbeats
@@ -31,7 +36,7 @@ public class IncomingNeighborConnectionThread implements Runnable {
 		try {
 			clientSocket.setSoTimeout(config.socketTimeout);
 		} catch (SocketException e) {
-			System.out.println("Couldn't set socket timout");
+			log.warn("Couldn't set socket timeout", "neighbor", clientIP);
 		}
 	}
 
@@ -44,6 +49,8 @@ public class IncomingNeighborConnectionThread implements Runnable {
 	}
 
 	public void run() {
+		// Incoming connections count towards this host's degree
+		config.incomingNeighbors.incrementAndGet();
 		try {
 			PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
 			BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
@@ -59,13 +66,13 @@ public class IncomingNeighborConnectionThread implements Runnable {
 					if (!heartbeatSent) {
 						// The neighbor hasn't sent anything in awhile, send a heartbeat
 						out.println("H:ClientAlive?");
-						System.out.println("Sent heartbeat to neighbor " + clientIP);
+						log.debug("Sent heartbeat", "neighbor", clientIP);
 						heartbeatSent = true;
 					}
 					else {
 						// The neighbor did not respond to the heartbeat after 60 seconds
 						heartbeatTimeout = true;
-						System.out.println("Neighbor " + clientIP + " did not respond to heartbeat for 60 seconds, closing connection");
+						log.info("Neighbor did not respond to heartbeat for 60 seconds, closing connection", "neighbor", clientIP);
 					}
 					// Jump back to top of loop
 					continue;
@@ -78,10 +85,15 @@ public class IncomingNeighborConnectionThread implements Runnable {
 
 				// If the neighbor closes the connection, readline will return null
 				if (line == null) {
-					System.out.println("Incoming neighbor " + clientIP + " closed socket remotely");
+					log.info("Incoming neighbor closed socket remotely", "neighbor", clientIP);
 					break;
 				}
 
+				// Queries over this neighbor's rate are dropped before they are parsed, so a flood costs little
+				if (line.startsWith("Q:") && !config.admission.admit(queryLimit, clientIP)) {
+					continue;
+				}
+
 				String[] splitLine = line.replaceAll(";", ":").split(":");
 
 				// Handle incoming request appropriately
@@ -92,90 +104,96 @@ public class IncomingNeighborConnectionThread implements Runnable {
 				case "H":
 					handleHeartbeat(splitLine, out);
 					break;
+				case "P":
+					handlePeerExchange(line, out);
+					break;
+				case "B":
+					handleSummaryRequest(out);
+					break;
 				}
 			}
 
+			// Responses can't be relayed to this neighbor anymore, forget its routes
+			config.routes.removeSource(out);
+
 			in.close();
 			out.close();
 
 		} catch (IOException e) {
-			System.out.println("Error communicating with " + clientIP);
+			log.warn("Error communicating with neighbor", "neighbor", clientIP, "error", e);
 		}
 
-
+		config.incomingNeighbors.decrementAndGet();
 	}
 
 	public void handleQuery(String[] splitQuery, PrintWriter out) {
-		// Check validity of query
-		// Q:<QID>;<filename>
-		if (splitQuery.length != 3) {
-			System.out.println("Malformed query recieved from " + clientIP);
-			return;
-		}
-
-		// Check if query was already recieved from another neighbor
-		if (qids.contains(splitQuery[1])) {
-			System.out.println("Duplicate query recieved from " + clientIP + ", will not forward to neighbors");
-			return;
-		}
-
-		// Otherwise, this is a new query
-		// Add this QID to the list of seen QIDs
-		qids.add(splitQuery[1]);
-		// If the list has too many elements, remove the oldest
-		if (qids.size() > 20) {
-			qids.poll();
-		}
-
-		System.out.println("Recieved new query from " + clientIP);
-
-		// Check if file is present on this host
-		if (config.shared_files.contains(splitQuery[2])) {
-			// Construct and send the response message
-			// R:<QID>;<peer IP>:<peer port>;<filename>
-			System.out.println("File queried by " + clientIP + " is on this peer, sending response with sharing server information");
-			String response = "R:" + splitQuery[1] + ";" + config.host_ip + ":" + config.sharing_port + ";" + splitQuery[2];
-			out.println(response);
-		}
-		else {
-			// Create Query for each outgoing neighbor to handle forwarding requests
-			System.out.println("File queried by " + clientIP + " is not on this peer, forwarding to neighbors");
-			String query = "Q:" + splitQuery[1] + ";" + splitQuery[2];
-			for (Neighbor n: config.neighbors) {
-				n.queries.add(new Query(out, splitQuery[1], query, splitQuery[2]));
-			}
-			// This thread can forget about the query, all responses will be handled by the OutgoingNeighborConnectionThreads
-		}
+		NeighborRouter.handleQuery(config, qids, splitQuery, out, clientIP);
 	}
 
 	public void handleHeartbeat(String[] splitLine, PrintWriter out) {
 		// Check validity of heartbeat
 		// H:<clientIP>
 		if (splitLine.length != 2) {
-			System.out.println("Unexpected heartbeat recieved from " + clientIP);
+			log.warn("Unexpected heartbeat recieved", "neighbor", clientIP);
 			out.println("H:NAK");
 			return;
 		}
 
 		// If heartbeat is client checking on server, immediately reply to heartbeat with an ACK
 		if (splitLine[1].equals("ServerAlive?")) {
-			System.out.println("Recieved heartbeat from neighbor " + clientIP);
 			out.println("H:ACK");
-			System.out.println("Sent heartbeat back to neighbor " + clientIP);
+			log.debug("Answered heartbeat", "neighbor", clientIP);
 		}
 		// If heartbeat is responding to server check, set flags appropriately
 		else if (splitLine[1].equals("ACK")) {
-			System.out.println("Recieved heartbeat back from neighbor " + clientIP);
+			log.debug("Recieved heartbeat back", "neighbor", clientIP);
 			heartbeatSent = false;
 		}
 	}
 
+	public void handlePeerExchange(String line, PrintWriter out) {
+		// P:<IP>,<neighbor port>,<sharing port>,<age in seconds>;...
+		// Learn the peers known by the neighbor, then reply with the peers known by this host
+		PeerTable.Entry sender = config.peers.merge(config, line);
+		if (sender == null) {
+			log.warn("Malformed peer exchange recieved", "neighbor", clientIP);
+			return;
+		}
+		out.println(config.peers.exchangeMessage(config, config.peerExchangeSize));
+	}
+
+	public void handleSummaryRequest(PrintWriter out) {
+		// B:?
+		// Reply with the levels of this host's summary that changed since they were last sent on this connection
+		// B:<level>=<filter>;<level>=<filter>...
+		BloomFilter[] levels = config.summary.levels();
+		StringBuilder reply = new StringBuilder();
+		for (int i = 0; i < levels.length; i++) {
+			int hash = levels[i].contentHash();
+			if (summarySent == null || summarySent[i] != hash) {
+				reply.append(reply.length() == 0 ? "B:" : ";");
+				reply.append(i + "=" + levels[i].encode());
+			}
+		}
+		if (summarySent == null) {
+			summarySent = new int[levels.length];
+		}
+		for (int i = 0; i < levels.length; i++) {
+			summarySent[i] = levels[i].contentHash();
+		}
+
+		// Nothing is sent if the summary is unchanged
+		if (reply.length() > 0) {
+			out.println(reply.toString());
+		}
+	}
+
 	public void stopThread() {
 		try {
         	clientSocket.close();
-			System.out.println("Closed incoming neighbor connection to " + clientIP);
+			log.info("Closed incoming neighbor connection", "neighbor", clientIP);
 		} catch (IOException e) {
-			System.out.println("Unable to stop Incoming Neighbor connection thread");
+			log.warn("Unable to stop incoming neighbor connection thread", "neighbor", clientIP);
 		}
 	}
 }
@@ -1,8 +1,6 @@
 package src.neighbor;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-import src.sharing.Query;
+import java.net.InetSocketAddress;
 
 public class Neighbor {
 	// Utility class for storing information about a peer's neighbor
@@ -11,7 +9,29 @@ public class Neighbor {
 	public int neighbor_port, sharing_port;
 	public OutgoingNeighborConnectionThread nct;
 	public Thread t;
-	public ConcurrentLinkedQueue<Query> queries;
+	public QueryQueue queries;
+
+	// Attenuated Bloom filter sent by the neighbor, null until the first summary arrives
+	public volatile BloomFilter[] summary;
+
+	// True if this neighbor was learned through peer exchange instead of config_neighbors.txt
+	public boolean dynamic;
+
+	// Health of the connection, updated by the connection and supervisor threads
+	// rtt is a moving average of heartbeat round trip times in milliseconds
+	// errorRate is a moving average of failed (1) and successful (0) connection events
+	public volatile double rtt, errorRate;
+	public volatile long queriesSent, responsesReceived;
+
+	// Set when this neighbor is reached through the datagram transport instead of a connection thread
+	// udpAlive is true while the neighbor answers heartbeats, the other times are used by DatagramTransport
+	public volatile boolean udp, udpAlive;
+	public long udpLastHeard, udpHeartbeatTime, udpExchangeTime;
+	public InetSocketAddress udpAddress;
+
+	// Reconnection state used by NeighborSupervisorThread
+	public volatile int failedAttempts;
+	public volatile long nextAttemptTime;
 
 	public Neighbor() {}
 
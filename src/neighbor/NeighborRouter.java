@@ -0,0 +1,350 @@
+package src.neighbor;
+
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import src.config.ConfigObject;
+import src.log.Log;
+import src.log.Logger;
+import src.sharing.Query;
+
+public class NeighborRouter {
+	// Chooses which outgoing neighbors a query is sent to
+	// Neighbors are ranked by their connection health so degraded peers are avoided
+	// Queries are only sent to neighbors whose content summary may contain the file, if there are any
+	// Queries and responses are handled here so TCP connections and the datagram transport behave the same
+
+	private static final Logger log = Log.getLogger("neighbor.router");
+
+	// A neighbor is considered degraded if its score is below this fraction of the best score
+	private static final double degradedFraction = 0.25;
+
+	// Weight of a new sample in the moving averages kept for each neighbor
+	private static final double sampleWeight = 0.2;
+
+	// Counter that keeps query IDs unique when several queries are made in the same millisecond
+	private static final AtomicInteger querySequence = new AtomicInteger();
+
+	public static String nextQid(ConfigObject config) {
+		// Calculate a unique query ID using the IP of this host, the last 6 digits of the current time in milliseconds (over 15 minutes)
+		// and a 3 digit sequence number
+		String ipShort = config.host_ip.replaceAll("\\.", "");
+		String currTime = Long.toString(System.currentTimeMillis());
+		return ipShort + currTime.substring(currTime.length()-6) + String.format("%03d", querySequence.getAndIncrement() % 1000);
+	}
+
+	public static boolean query(ConfigObject config, QidSet qids, String qid, String filename, RouteTable.ResponseListener listener) {
+		// Send a query that originates from this host, returns false if no neighbor could take it
+		List<Neighbor> targets = select(config.neighbors, filename);
+		if (targets.isEmpty()) {
+			return false;
+		}
+
+		// Add qid to the set of seen qids in case this query is forwarded back in a loop
+		qids.add(qid);
+
+		// A route without a source marks responses to this query as ours
+		config.routes.add(qid, null, filename, listener);
+
+		// A sample of queries is traced, each peer on the path adds its timing to the responses
+		boolean traced = QueryTrace.sample(config);
+		if (traced) {
+			config.routes.trace(qid, System.currentTimeMillis());
+		}
+
+		// With direct responses on, peers with the file answer this host over UDP instead of along the reverse path
+		String direct = "";
+		if (config.directResponses && config.datagrams != null && config.datagrams.isRunning()) {
+			direct = ";D=" + config.host_ip + "-" + config.neighbor_port;
+		}
+
+		// The "out" param of the query is null to indicate this peer is the original source of the query
+		String query = "Q:" + qid + ";" + filename + (traced ? ";T" : "") + direct;
+		for (Neighbor n: targets) {
+			Query q = new Query(null, qid, query, filename);
+			q.traced = traced;
+			n.queries.add(q);
+		}
+		return true;
+	}
+
+	public static void querySent(ConfigObject config, Neighbor n, Query query) {
+		// Called by the transport that took the query from the neighbor's queue and sent it
+		n.queriesSent++;
+		if (query.traced) {
+			config.routes.sent(query.qid, n, System.currentTimeMillis());
+		}
+	}
+
+	public static void handleQuery(ConfigObject config, QidSet qids, String[] splitQuery, PrintWriter out, String source) {
+		long received = System.currentTimeMillis();
+
+		// Check validity of query
+		// Q:<QID>;<filename>, followed by ;T for a traced query and ;D=<IP>-<neighbor port> of the originator
+		// if it wants responses sent to it directly
+		boolean traced = false, valid = splitQuery.length >= 3;
+		String direct = "";
+		InetSocketAddress origin = null;
+		for (int i = 3; i < splitQuery.length && valid; i++) {
+			if (splitQuery[i].equals("T")) {
+				traced = true;
+			}
+			else if (splitQuery[i].startsWith("D=")) {
+				direct = ";" + splitQuery[i];
+				origin = parseOrigin(splitQuery[i].substring(2));
+				valid = origin != null;
+				if (valid && !knownOrigin(config, origin, source)) {
+					log.debug("Originator of query is not a known peer, responses go along the reverse path", "neighbor", source, "originator", origin);
+					origin = null;
+				}
+			}
+			else {
+				valid = false;
+			}
+		}
+		if (!valid) {
+			log.warn("Malformed query recieved", "neighbor", source);
+			return;
+		}
+
+		// Check if query was already recieved from another neighbor
+		// Otherwise, this is a new query and its QID is added to the set of seen QIDs
+		if (!qids.add(splitQuery[1])) {
+			log.debug("Duplicate query recieved, will not forward to neighbors", "neighbor", source, "qid", splitQuery[1]);
+			return;
+		}
+
+		log.debug("Recieved new query", "neighbor", source, "qid", splitQuery[1], "file", splitQuery[2]);
+
+		// Popular files may be cached by this peer
+		config.cache.recordQuery(splitQuery[2]);
+
+		// Check if file is present on this host, obtained files and downloads in progress are served too
+		if (config.files.has(splitQuery[2])) {
+			// Construct and send the response message
+			// R:<QID>;<peer IP>:<peer port>;<filename>
+			log.debug("Queried file is on this peer, sending response", "neighbor", source, "qid", splitQuery[1]);
+			String response = "R:" + splitQuery[1] + ";" + config.host_ip + ":" + config.sharing_port + ";" + splitQuery[2];
+			if (traced) {
+				// R:<QID>;<peer IP>:<peer port>;<filename>;<hop>
+				response += ";" + QueryTrace.hop(config, received, System.currentTimeMillis());
+			}
+			if (origin != null && config.datagrams != null && config.datagrams.isRunning()) {
+				// Answer the originator directly, the reverse path is only used if it never acknowledges the response
+				final PrintWriter reversePath = out;
+				final String reply = response, qid = splitQuery[1];
+				final InetSocketAddress originator = origin;
+				config.datagrams.send(originator, response, new Runnable() {
+					public void run() {
+						log.info("Originator did not acknowledge direct response, sending it along the reverse path", "qid", qid, "originator", originator);
+						reversePath.println(reply);
+					}
+				});
+			}
+			else {
+				out.println(response);
+			}
+		}
+		else if (config.admission.forward(splitQuery[1])) {
+			// Create Query for the healthiest outgoing neighbors whose summaries match the file
+			log.debug("Queried file is not on this peer, forwarding to neighbors", "neighbor", source, "qid", splitQuery[1]);
+			String query = "Q:" + splitQuery[1] + ";" + splitQuery[2] + (traced ? ";T" : "") + direct;
+			// Remember where the query came from so responses can be sent back, the fallback for direct responses
+			config.routes.add(splitQuery[1], out, splitQuery[2]);
+			if (traced) {
+				config.routes.trace(splitQuery[1], received);
+			}
+			for (Neighbor n: select(config.neighbors, splitQuery[2])) {
+				Query q = new Query(out, splitQuery[1], query, splitQuery[2]);
+				q.traced = traced;
+				// Neighbors that can't keep up are skipped, so their queues drain instead of growing
+				if (n.queries.isCongested() || !n.queries.add(q)) {
+					log.debug("Neighbor is congested, query not forwarded", "neighbor", n.ip + ":" + n.neighbor_port, "qid", splitQuery[1]);
+				}
+			}
+			// All responses will be handled by the transport of the neighbors the query was sent to
+		}
+	}
+
+	public static void handleResponse(ConfigObject config, Neighbor neighbor, String[] splitLine, String line, String source, RouteTable.ResponseListener download) {
+		// R:<QID>;<peer IP>:<peer port>;<filename>, followed by ;<hop>,<hop>... for a traced query
+		// download handles responses to queries from this host that have no listener of their own
+
+		if ((splitLine.length != 5 && splitLine.length != 6) || parsePort(splitLine[3]) < 0) {
+			log.warn("Malformed response recieved", "neighbor", source);
+			return;
+		}
+
+		// If this is a response to a query we have never seen or whose route expired, do nothing and return
+		RouteTable.Route route = config.routes.get(splitLine[1]);
+		if (route == null) {
+			return;
+		}
+
+		// The response must name the file that was queried, it is not relayed, cached or downloaded otherwise
+		if (!splitLine[4].equals(route.filename)) {
+			log.warn("Response is for a different file than the query", "neighbor", source, "qid", splitLine[1], "file", splitLine[4]);
+			return;
+		}
+
+		// Count responses to queries sent to this neighbor towards its yield
+		if (neighbor != null) {
+			neighbor.responsesReceived++;
+		}
+
+		// If this is a response to a forwarded query, forward the response to the original source
+		// This traverses the overlay network in reverse
+		// The route is kept until it expires so responses from several peers can be relayed
+		if (route.querySource != null) {
+			// A popular file relayed through this peer may be worth a copy of its own
+			config.cache.offer(splitLine[4], splitLine[2] + ":" + splitLine[3]);
+			if (config.routes.countResponse(route)) {
+				log.debug("Forwarding response back to incoming neighbor", "neighbor", source, "qid", splitLine[1], "file", splitLine[4]);
+				if (route.traced && splitLine.length == 6) {
+					line += "," + QueryTrace.hop(config, route.received, config.routes.sentTime(route, neighbor));
+				}
+				route.querySource.println(line);
+			}
+			return;
+		}
+
+		if (route.traced && splitLine.length == 6) {
+			QueryTrace.report(splitLine[1], route.filename, config.routes.sentTime(route, neighbor), System.currentTimeMillis(), splitLine[5]);
+		}
+
+		// Else, this is a query that originated from this host
+		// Let the listener handle it, or connect to the server in the response to download the file
+		RouteTable.ResponseListener listener = route.listener != null ? route.listener : download;
+		listener.onResponse(splitLine[1], splitLine[2], Integer.parseInt(splitLine[3]), splitLine[4]);
+	}
+
+	static int parsePort(String port) {
+		// Returns the port, or -1 if it is not a number from 1 to 65535
+		try {
+			int p = Integer.parseInt(port);
+			return p > 0 && p <= 65535 ? p : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static InetSocketAddress parseOrigin(String contact) {
+		// <IP>-<neighbor port> of the peer a query came from, null if it is not valid
+		int split = contact.lastIndexOf('-');
+		try {
+			String ip = contact.substring(0, split);
+			int port = Integer.parseInt(contact.substring(split + 1));
+			if (!ip.matches("[0-9]{1,3}(\\.[0-9]{1,3}){3}") || port <= 0 || port > 65535) {
+				return null;
+			}
+			return new InetSocketAddress(ip, port);
+		} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+			return null;
+		}
+	}
+
+	private static boolean knownOrigin(ConfigObject config, InetSocketAddress origin, String source) {
+		// Direct responses are only sent to the neighbor the query came from or to peers this peer already knows,
+		// so a query can't point this peer's responses at an address of the sender's choosing
+		String ip = origin.getAddress().getHostAddress();
+		// source is the neighbor's socket address, [<host>]/<IP>:<port>
+		int split = source.lastIndexOf(':');
+		if (split > 0 && source.substring(source.lastIndexOf('/') + 1, split).equals(ip)) {
+			return true;
+		}
+		for (Neighbor n: config.neighbors) {
+			if (n.ip.equals(ip) && n.neighbor_port == origin.getPort()) {
+				return true;
+			}
+		}
+		return config.peers.contains(ip, origin.getPort());
+	}
+
+	public static List<Neighbor> select(List<Neighbor> neighbors, String filename) {
+		List<Neighbor> healthy = selectHealthy(neighbors);
+
+		// Only the neighbors whose summaries match at the shallowest level are chosen, since they are the
+		// fewest hops from the file, neighbors that have not sent a summary yet can't be ruled out
+		ArrayList<Neighbor> matching = new ArrayList<Neighbor>();
+		ArrayList<Neighbor> unknown = new ArrayList<Neighbor>();
+		int shallowest = Integer.MAX_VALUE;
+		for (Neighbor n: healthy) {
+			BloomFilter[] summary = n.summary;
+			if (summary == null) {
+				unknown.add(n);
+				continue;
+			}
+			int level = ContentSummary.level(summary, filename);
+			if (level < 0 || level > shallowest) {
+				continue;
+			}
+			if (level < shallowest) {
+				shallowest = level;
+				matching.clear();
+			}
+			matching.add(n);
+		}
+		matching.addAll(unknown);
+
+		// If no summary matches, the file may be further away than the summaries reach, flood instead
+		return matching.isEmpty() ? healthy : matching;
+	}
+
+	public static List<Neighbor> selectHealthy(List<Neighbor> neighbors) {
+		// Only neighbors with a live connection thread, or that answer over UDP, can send queries
+		ArrayList<Neighbor> connected = new ArrayList<Neighbor>();
+		for (Neighbor n: neighbors) {
+			if (isConnected(n)) {
+				connected.add(n);
+			}
+		}
+		if (connected.isEmpty()) {
+			return connected;
+		}
+
+		// Sort from healthiest to least healthy
+		Collections.sort(connected, new Comparator<Neighbor>() {
+			public int compare(Neighbor a, Neighbor b) {
+				return Double.compare(score(b), score(a));
+			}
+		});
+
+		// Keep every neighbor that is not far behind the healthiest one
+		// If all neighbors are equally degraded, they are all kept
+		double threshold = score(connected.get(0)) * degradedFraction;
+		ArrayList<Neighbor> healthy = new ArrayList<Neighbor>();
+		for (Neighbor n: connected) {
+			if (score(n) >= threshold) {
+				healthy.add(n);
+			}
+		}
+		return healthy;
+	}
+
+	public static boolean isConnected(Neighbor n) {
+		Thread t = n.t;
+		return (t != null && t.isAlive()) || (n.udp && n.udpAlive);
+	}
+
+	public static double score(Neighbor n) {
+		// Combine error rate, response yield, round trip time and queue length into a single score
+		// Yield is smoothed so new neighbors without history start at 0.5
+		// A full queue halves the score, so queries move to neighbors that keep up
+		double yield = (n.responsesReceived + 1.0) / (n.queriesSent + 2.0);
+		double load = n.queries == null ? 0 : n.queries.fill();
+		return (1 - n.errorRate) * yield / (1 + n.rtt / 1000) * (1 - load / 2);
+	}
+
+	public static void recordRtt(Neighbor n, long sample) {
+		n.rtt = n.rtt == 0 ? sample : (1 - sampleWeight) * n.rtt + sampleWeight * sample;
+	}
+
+	public static void recordError(Neighbor n, boolean failed) {
+		n.errorRate = (1 - sampleWeight) * n.errorRate + (failed ? sampleWeight : 0);
+	}
+}
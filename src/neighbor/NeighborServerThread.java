@@ -3,7 +3,6 @@ package src.neighbor;
 import java.io.*;
 import java.net.*;
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import src.config.ConfigObject;
 
@@ -15,9 +14,9 @@ public class NeighborServerThread implements Runnable {
 	private Thread t;
 	private ArrayList<IncomingNeighborConnectionThread> clients;
 	private ArrayList<Thread> clientThreads;
-	private ConcurrentLinkedQueue<String> qids;
+	private QidSet qids;
 
-	public NeighborServerThread(ConfigObject c, ConcurrentLinkedQueue<String> q) {
+	public NeighborServerThread(ConfigObject c, QidSet q) {
 		config = c;
 		qids = q;
 		clients = new ArrayList<IncomingNeighborConnectionThread>();
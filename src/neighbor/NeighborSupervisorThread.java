@@ -0,0 +1,209 @@
+package src.neighbor;
+
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import src.config.ConfigObject;
+import src.log.Log;
+import src.log.Logger;
+
+public class NeighborSupervisorThread implements Runnable {
+	// Thread for keeping a connection open to every outgoing neighbor
+	// Lost or failed connections are retried with exponential backoff and jitter
+	// Neighbors learned through peer exchange are added and removed to keep the degree near its target
+
+	private static final Logger log = Log.getLogger("neighbor.supervisor");
+
+	private ConfigObject config;
+	private Semaphore download;
+	private Thread t;
+	private Random random;
+
+	// How often the neighbor connections are checked
+	private final int checkInterval = 1000;
+
+	// Learned neighbors are forgotten after this many failed connection attempts in a row
+	private final int learnedNeighborAttempts = 3;
+
+	public NeighborSupervisorThread(ConfigObject c, Semaphore d) {
+		config = c;
+		download = d;
+		random = new Random();
+	}
+
+	public Thread start() {
+		if (t == null) {
+			t = new Thread (this, "Neighbor Supervisor");
+			t.start();
+		}
+		return t;
+	}
+
+	public void run() {
+		while (!Thread.currentThread().isInterrupted()) {
+			for (Neighbor n: config.neighbors) {
+				superviseNeighbor(n);
+			}
+			maintainDegree();
+
+			try {
+				Thread.sleep(checkInterval);
+			} catch (InterruptedException e) {
+				// stopThread was called, exit the main loop
+				break;
+			}
+		}
+	}
+
+	private void superviseNeighbor(Neighbor n) {
+		// Neighbors reached over UDP don't need a connection thread, the datagram transport checks on them
+		if (config.udpNeighbors) {
+			if (n.t != null) {
+				n.t.interrupt();
+				n.nct.stopThread();
+				n.t = null;
+				n.nct = null;
+			}
+			n.udp = true;
+			return;
+		}
+		n.udp = false;
+		n.udpAlive = false;
+
+		// Nothing to do while the connection thread is running
+		if (n.t != null && n.t.isAlive()) {
+			return;
+		}
+
+		// The connection thread has terminated since the last check
+		if (n.t != null) {
+			n.t = null;
+			n.nct = null;
+			// Queries waiting for this neighbor would be stale by the time it reconnects
+			n.queries.clear();
+			NeighborRouter.recordError(n, true);
+			scheduleRetry(n);
+			log.info("Lost neighbor connection", "neighbor", n.ip + ":" + n.neighbor_port, "retryMs", n.nextAttemptTime - System.currentTimeMillis());
+			return;
+		}
+
+		// Wait for the backoff period to pass
+		if (n.nextAttemptTime > System.currentTimeMillis()) {
+			return;
+		}
+
+		// Get available port for the new socket
+		Integer nextPort = config.openPorts.poll();
+		if (nextPort == null) {
+			return;
+		}
+
+		log.debug("Attempting to create neighbor connection", "neighbor", n.ip + ":" + n.neighbor_port);
+		OutgoingNeighborConnectionThread nct = new OutgoingNeighborConnectionThread(config, n, download, nextPort);
+		if (!nct.isConnected()) {
+			// Return port to available ports and try again later
+			config.openPorts.add(nextPort);
+			NeighborRouter.recordError(n, true);
+			scheduleRetry(n);
+
+			// A learned peer that can't be reached is probably gone, stop trying it
+			if (n.dynamic && n.failedAttempts >= learnedNeighborAttempts) {
+				log.info("Removing unreachable learned neighbor", "neighbor", n.ip + ":" + n.neighbor_port);
+				config.neighbors.remove(n);
+				config.peers.remove(n.ip, n.neighbor_port);
+			}
+			return;
+		}
+
+		NeighborRouter.recordError(n, false);
+		n.failedAttempts = 0;
+		n.nct = nct;
+		n.t = nct.start();
+	}
+
+	private void maintainDegree() {
+		// The degree counts outgoing connections, learned neighbors not tried yet, and incoming connections
+		// A neighbor is added while there are fewer than targetDegree outgoing ones and the degree is below
+		// maxDegree, and closed only while the degree is above maxDegree and more than targetDegree are outgoing
+		// Neither branch can undo what the other did, so learned neighbors are not closed and added again in a loop
+		int outgoing = 0;
+		Neighbor worst = null;
+		for (Neighbor n: config.neighbors) {
+			boolean alive = NeighborRouter.isConnected(n);
+			if (alive || (n.dynamic && n.failedAttempts == 0)) {
+				outgoing++;
+			}
+			// Only learned neighbors are candidates for removal
+			if (alive && n.dynamic && (worst == null || NeighborRouter.score(n) < NeighborRouter.score(worst))) {
+				worst = n;
+			}
+		}
+
+		int degree = outgoing + config.incomingNeighbors.get();
+		if (outgoing < config.targetDegree && degree < config.maxDegree) {
+			// Open one connection per check to a fresh peer that is not a neighbor yet
+			for (PeerTable.Entry e: config.peers.freshest(config.peerTableSize)) {
+				if (!isNeighbor(e.ip, e.neighbor_port)) {
+					Neighbor n = new Neighbor();
+					n.ip = e.ip;
+					n.neighbor_port = e.neighbor_port;
+					n.sharing_port = e.sharing_port;
+					n.queries = new QueryQueue(config.queryQueueSize, config.queryQueueCongested);
+					n.dynamic = true;
+					config.neighbors.add(n);
+					log.info("Adding learned neighbor", "neighbor", n.ip + ":" + n.neighbor_port);
+					break;
+				}
+			}
+		}
+		else if (degree > config.maxDegree && outgoing > config.targetDegree && worst != null) {
+			// This host has more connections than it needs, close the least healthy learned one
+			log.info("Closing learned neighbor to reduce degree", "neighbor", worst.ip + ":" + worst.neighbor_port);
+			config.neighbors.remove(worst);
+			if (worst.t != null) {
+				worst.t.interrupt();
+				worst.nct.stopThread();
+			}
+		}
+	}
+
+	private boolean isNeighbor(String ip, int neighborPort) {
+		if (ip.equals(config.host_ip) && neighborPort == config.neighbor_port) {
+			return true;
+		}
+		for (Neighbor n: config.neighbors) {
+			if (n.ip.equals(ip) && n.neighbor_port == neighborPort) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void scheduleRetry(Neighbor n) {
+		// Double the delay for each consecutive failure up to the maximum
+		// A random jitter of up to half the delay keeps peers from retrying in lockstep
+		n.failedAttempts++;
+		long delay = Math.min((long) config.reconnectBaseDelay << Math.min(n.failedAttempts - 1, 20), config.reconnectMaxDelay);
+		delay = delay / 2 + (long) (random.nextDouble() * delay / 2);
+		n.nextAttemptTime = System.currentTimeMillis() + delay;
+	}
+
+	public void retryNow() {
+		// Clear the backoff so every disconnected neighbor is retried on the next check
+		for (Neighbor n: config.neighbors) {
+			n.failedAttempts = 0;
+			n.nextAttemptTime = 0;
+		}
+	}
+
+	public void stopThread() {
+		t.interrupt();
+		try {
+			// Wait for any connection attempt in progress so it can't race with leave
+			// Attempts give up after connectTimeout, so this doesn't hold up leave for longer
+			t.join(config.connectTimeout + checkInterval);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
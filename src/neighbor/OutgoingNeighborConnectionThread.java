@@ -2,16 +2,20 @@ package src.neighbor;
 
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
 import java.util.concurrent.Semaphore;
 
 import src.config.ConfigObject;
+import src.log.Log;
+import src.log.Logger;
+import src.sharing.FileDownload;
 import src.sharing.Query;
 
 public class OutgoingNeighborConnectionThread implements Runnable {
 	// Thread for communicating with a connected neighbor
 	// An outgoing neighbor is a peer that is in this host's neighbors.txt
 
+	private static final Logger log = Log.getLogger("neighbor.outgoing");
+
 	private ConfigObject config;
 	private Neighbor neighbor;
 	private Socket neighborSocket;
@@ -19,8 +23,7 @@ public class OutgoingNeighborConnectionThread implements Runnable {
 	private Thread t;
 	private String neighborIP;
 	private boolean heartbeatSent = false, heartbeatTimeout = false;
-	private long heartbeatTime;
-	private HashMap<String, Query> qidMap;
+	private long heartbeatTime, heartbeatSentTime, peerExchangeTime, summaryTime;
 	private int localPort;
 	private boolean connected;
 
@@ -30,15 +33,18 @@ public class OutgoingNeighborConnectionThread implements Runnable {
 		neighborIP = n.ip;
 		download = d;
 		heartbeatTime = nextHeartbeatTime();
-		qidMap = new HashMap<String, Query>();
 		localPort = port;
 
 		try {
-			neighborSocket = new Socket(neighborIP, neighbor.neighbor_port, config.host, localPort);
+			// Local ports are reused on every reconnect, allow binding while the last connection on it closes
+			neighborSocket = new Socket();
+			neighborSocket.setReuseAddress(true);
+			neighborSocket.bind(new InetSocketAddress(config.host, localPort));
+			neighborSocket.connect(new InetSocketAddress(neighborIP, neighbor.neighbor_port), config.connectTimeout);
 			neighborIP = neighborSocket.getRemoteSocketAddress().toString();
-			System.out.println("Successfully created neighbor connection with " + neighborIP);
+			log.info("Created neighbor connection", "neighbor", neighborIP);
 		} catch (IOException e) {
-			System.out.println("Unable to create neighbor connection with " + neighborIP);
+			log.info("Unable to create neighbor connection", "neighbor", neighborIP, "error", e);
 			connected = false;
 			return;
 		}
@@ -49,12 +55,16 @@ public class OutgoingNeighborConnectionThread implements Runnable {
 			// Close connection when timer expires
 			neighborSocket.setSoTimeout(config.socketTimeout);
 		} catch (SocketException e) {
-			System.out.println("Couldn't set socket timout");
+			log.warn("Couldn't set socket timeout", "neighbor", neighborIP);
 		}
 
 		connected = true;
 	}
 
+	public boolean isConnected() {
+		return connected;
+	}
+
 	public Thread start() {
 		if (t == null) {
 			t = new Thread (this, "Outgoing Neighbor Connection");
@@ -74,6 +84,10 @@ public class OutgoingNeighborConnectionThread implements Runnable {
 			PrintWriter out = new PrintWriter(neighborSocket.getOutputStream(), true);
 			BufferedReader in = new BufferedReader(new InputStreamReader(neighborSocket.getInputStream()));
 
+			// Exchange known peers and content summaries as soon as the connection is open
+			peerExchangeTime = 0;
+			summaryTime = 0;
+
 			while (!Thread.currentThread().isInterrupted() && !heartbeatTimeout) {
 				// If heartbeat was sent, wait for reply before sending any more queries
 				if (heartbeatSent) {
@@ -84,7 +98,8 @@ public class OutgoingNeighborConnectionThread implements Runnable {
 					catch (SocketTimeoutException e) {
 						// The neighbor did not respond to the heartbeat in 60 seconds
 						heartbeatTimeout = true;
-						System.out.println("Neighbor " + neighborIP + " did not respond to heartbeat for 60 seconds, closing connection");
+						NeighborRouter.recordError(neighbor, true);
+						log.info("Neighbor did not respond to heartbeat for 60 seconds, closing connection", "neighbor", neighborIP);
 						continue;
 					}
 					catch (IOException e) {
@@ -95,13 +110,15 @@ public class OutgoingNeighborConnectionThread implements Runnable {
 
 					if (reply == null) {
 						// The neighbor closed the socket connection
-						System.out.println("Outgoing neighbor " + neighborIP + " closed socket remotely");
+						log.info("Outgoing neighbor closed socket remotely", "neighbor", neighborIP);
 						break;
 					}
 
 					if (reply.equals("H:ACK")) {
 						// Heartbeat was acknowledged, set variables appropriately
-						System.out.println("Recieved heartbeat back from neighbor " + neighborIP);
+						log.debug("Recieved heartbeat back", "neighbor", neighborIP);
+						NeighborRouter.recordRtt(neighbor, System.currentTimeMillis() - heartbeatSentTime);
+						NeighborRouter.recordError(neighbor, false);
 						heartbeatSent = false;
 						heartbeatTime = nextHeartbeatTime();
 					}
@@ -115,12 +132,25 @@ public class OutgoingNeighborConnectionThread implements Runnable {
 				// If enough time has passed, send a heartbeat to the neighbor
 				if (heartbeatTime < System.currentTimeMillis()) {
 					out.println("H:ServerAlive?");
-					System.out.println("Sent heartbeat to neighbor " + neighborIP);
+					log.debug("Sent heartbeat", "neighbor", neighborIP);
 					heartbeatSent = true;
+					heartbeatSentTime = System.currentTimeMillis();
 					heartbeatTime = nextHeartbeatTime();
 					continue;
 				}
 
+				// Periodically share known peers with the neighbor, it replies with the peers it knows
+				if (peerExchangeTime < System.currentTimeMillis()) {
+					out.println(config.peers.exchangeMessage(config, config.peerExchangeSize));
+					peerExchangeTime = System.currentTimeMillis() + config.peerExchangeInterval;
+				}
+
+				// Periodically ask the neighbor for the parts of its content summary that changed
+				if (summaryTime < System.currentTimeMillis()) {
+					out.println("B:?");
+					summaryTime = System.currentTimeMillis() + config.summaryInterval;
+				}
+
 				// Check if the neighbor is trying to send us something without blocking
 				if (in.ready()) {
 					// Extend heartbeatTime since neighbor has communicated recently
@@ -137,16 +167,22 @@ public class OutgoingNeighborConnectionThread implements Runnable {
 					case "H":
 						handleHeartbeat(splitLine, out);
 						break;
+					case "P":
+						config.peers.merge(config, line);
+						break;
+					case "B":
+						handleSummary(line);
+						break;
 					}
 				}
 
-				// Finally, check if any queries need to be made
-				if (neighbor.queries.size() > 0) {
-					Query query = neighbor.queries.poll();
+				// Finally, check if any queries need to be made, queries from this host are sent first
+				Query query = neighbor.queries.poll();
+				if (query != null) {
 
-					System.out.println("Sending query for '" + query.filename + "' to " + neighborIP);
+					log.debug("Sending query", "neighbor", neighborIP, "qid", query.qid, "file", query.filename);
 					out.println(query.query);
-					qidMap.put(query.qid, query);
+					NeighborRouter.querySent(config, neighbor, query);
 				}
 			}
 
@@ -154,7 +190,8 @@ public class OutgoingNeighborConnectionThread implements Runnable {
 			out.close();
 
 		} catch (IOException e) {
-			System.out.println("Error communicating with " + neighborIP);
+			NeighborRouter.recordError(neighbor, true);
+			log.warn("Error communicating with neighbor", "neighbor", neighborIP, "error", e);
 		}
 
 		// Return port to available ports
@@ -164,93 +201,56 @@ public class OutgoingNeighborConnectionThread implements Runnable {
 
 	public void handleHeartbeat(String[] splitLine, PrintWriter out) {
 		if (splitLine.length != 2 || !splitLine[0].equals("H")) {
-			System.out.println("Unexpected heartbeat recieved from " + neighborIP);
+			log.warn("Unexpected heartbeat recieved", "neighbor", neighborIP);
 			out.println("H:NAK");
 			return;
 		}
 
 		// If heartbeat is client checking on server, immediately reply to heartbeat with acknowledgement
 		if (splitLine[1].equals("ClientAlive?")) {
-			System.out.println("Recieved heartbeat from neighbor " + neighborIP);
 			out.println("H:ACK");
-			System.out.println("Sent heartbeat back to neighbor " + neighborIP);
+			log.debug("Answered heartbeat", "neighbor", neighborIP);
 		}
 	}
 
-	public void handleResponse(String[] splitLine, String line, PrintWriter out) {
-		// R:<QID>;<peer IP>:<peer port>;<filename>
-
-		// If this is a response to a query we have never seen, do nothing and return
-		if (!qidMap.containsKey(splitLine[1])) {
+	public void handleSummary(String line) {
+		// B:<level>=<filter>;<level>=<filter>...
+		// Replace only the levels included in the message
+		BloomFilter[] summary = neighbor.summary == null ? new BloomFilter[config.summaryDepth] : neighbor.summary.clone();
+		if (line.length() < 2) {
+			log.warn("Malformed content summary recieved", "neighbor", neighborIP);
 			return;
 		}
-
-		// If this is a response to a forwarded query, forward the response to the original source
-		// This traverses the overlay network in reverse
-		Query query = qidMap.get(splitLine[1]);
-		if (query.querySource != null) {
-			System.out.println("Forwarding response for '" + splitLine[4] + "' back to incoming neighbor");
-			query.querySource.println(line);
-			qidMap.remove(splitLine[1]);
-			return;
+		for (String level: line.substring(2).split(";")) {
+			String[] parts = level.split("=", 2);
+			int i;
+			try {
+				i = Integer.parseInt(parts[0]);
+			} catch (NumberFormatException e) {
+				i = -1;
+			}
+			BloomFilter filter = parts.length == 2 ? ContentSummary.decode(config, parts[1]) : null;
+			if (i < 0 || i >= summary.length || filter == null) {
+				log.warn("Malformed content summary recieved", "neighbor", neighborIP);
+				return;
+			}
+			summary[i] = filter;
 		}
+		neighbor.summary = summary;
+	}
 
-		// Else, this is a query that originated from this host
-		// Connect to the server in the response to download the file
-		String fileServer = splitLine[2];
-		int filePort = Integer.parseInt(splitLine[3]);
-		String filepath = config.obtained_dir + splitLine[4];
-		File f = new File(filepath);
-
-		try {
-			download.acquire();
-
-			// If the file already exists, it must have been handled by a different neighbor connection thread
-			// If it doesn't exist, contact the server containing it to download
-			if (!f.exists()) {
-				try {
-					// Get available port for the new socket
-					int nextPort = config.openPorts.poll();
-					Socket fileSocket = new Socket(fileServer, filePort, config.host, nextPort);
-
-					f.createNewFile();
-
-					OutputStream fileOut = new FileOutputStream(filepath);
-					PrintWriter serverOut = new PrintWriter(fileSocket.getOutputStream(), true);
-					InputStream in = fileSocket.getInputStream();
-
-					// Tell the file server what file to give us
-					// T:<filename>
-					System.out.println("Requesting file transfer for '" + splitLine[4] + "' from " + fileServer);
-					serverOut.println("T:" + splitLine[4]);
-
-					// Write input stream from server to file 8192 bytes at a time
-					byte[] bytes = new byte[8192];
-					int count;
-			        while ((count = in.read(bytes)) > 0) {
-			            fileOut.write(bytes, 0, count);
-			        }
-
-			        System.out.println("Successfully downloaded '" + splitLine[4] + "' from " + fileServer);
-
-			        in.close();
-			        fileOut.close();
-			        serverOut.close();
-			        fileSocket.close();
-
-			        // Return port to available ports
-			        config.openPorts.add(nextPort);
-
-				} catch (IOException e) {
-					e.printStackTrace();
-					System.out.println("Error communicating with file server");
-				}
+	public void handleResponse(String[] splitLine, String line, PrintWriter out) {
+		// Responses to queries from this host without a listener are downloaded in a new thread,
+		// so later responses can add their peers to the download while it runs
+		NeighborRouter.handleResponse(config, neighbor, splitLine, line, neighborIP, new RouteTable.ResponseListener() {
+			public void onResponse(String qid, final String fileServer, final int filePort, final String filename) {
+				new Thread(new Runnable() {
+					public void run() {
+						FileDownload.download(config, download, fileServer, filePort, filename);
+					}
+				}, "Download").start();
 			}
-
-			download.release();
-		} catch (InterruptedException e) {
-			download.release();
-		}
+		});
 	}
 
 	public long nextHeartbeatTime() {
@@ -261,9 +261,9 @@ public class OutgoingNeighborConnectionThread implements Runnable {
 	public void stopThread() {
 		try {
         	neighborSocket.close();
-			System.out.println("Closed outging neighbor connection to " + neighborIP);
+			log.info("Closed outgoing neighbor connection", "neighbor", neighborIP);
 		} catch (IOException e) {
-			System.out.println("Unable to stop Outgoing Neighbor connection thread");
+			log.warn("Unable to stop outgoing neighbor connection thread", "neighbor", neighborIP);
 		}
 	}
 }
@@ -0,0 +1,172 @@
+package src.neighbor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import src.config.ConfigObject;
+
+public class PeerTable {
+	// Bounded table of peers learned through peer exchange
+	// Entries age out when they have not been seen for a while, and the oldest entry is evicted when full
+
+	public static class Entry {
+		public String ip;
+		public int neighbor_port, sharing_port;
+		public long lastSeen;
+
+		public Entry(String i, int np, int sp, long ls) {
+			ip = i;
+			neighbor_port = np;
+			sharing_port = sp;
+			lastSeen = ls;
+		}
+	}
+
+	private HashMap<String, Entry> entries;
+	private int maxSize;
+	private long maxAge;
+
+	public PeerTable(int size, long age) {
+		entries = new HashMap<String, Entry>();
+		maxSize = size;
+		maxAge = age;
+	}
+
+	public synchronized void add(String ip, int neighborPort, int sharingPort, long lastSeen) {
+		// Ignore entries that are already too old to be useful
+		// A peer is never seen later than now, so bad ages from peer exchange can't keep an entry forever
+		long now = System.currentTimeMillis();
+		if (lastSeen < now - maxAge) {
+			return;
+		}
+		lastSeen = Math.min(lastSeen, now);
+
+		String key = ip + ":" + neighborPort;
+		Entry e = entries.get(key);
+		if (e != null) {
+			// Keep the most recent sighting of a known peer
+			e.sharing_port = sharingPort;
+			e.lastSeen = Math.max(e.lastSeen, lastSeen);
+			return;
+		}
+
+		// Make room by removing aged entries, then the least recently seen one
+		if (entries.size() >= maxSize) {
+			expire();
+		}
+		if (entries.size() >= maxSize) {
+			Entry oldest = null;
+			for (Entry o: entries.values()) {
+				if (oldest == null || o.lastSeen < oldest.lastSeen) {
+					oldest = o;
+				}
+			}
+			if (oldest.lastSeen > lastSeen) {
+				return;
+			}
+			entries.remove(oldest.ip + ":" + oldest.neighbor_port);
+		}
+		entries.put(key, new Entry(ip, neighborPort, sharingPort, lastSeen));
+	}
+
+	public synchronized void remove(String ip, int neighborPort) {
+		entries.remove(ip + ":" + neighborPort);
+	}
+
+	public synchronized boolean contains(String ip, int neighborPort) {
+		return entries.containsKey(ip + ":" + neighborPort);
+	}
+
+	public synchronized List<Entry> freshest(int count) {
+		expire();
+
+		// Copy the entries so callers can use them without holding the lock
+		ArrayList<Entry> list = new ArrayList<Entry>();
+		for (Entry e: entries.values()) {
+			list.add(new Entry(e.ip, e.neighbor_port, e.sharing_port, e.lastSeen));
+		}
+		Collections.sort(list, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return Long.compare(b.lastSeen, a.lastSeen);
+			}
+		});
+		return list.subList(0, Math.min(count, list.size()));
+	}
+
+	public String exchangeMessage(ConfigObject config, int count) {
+		// P:<IP>,<neighbor port>,<sharing port>,<age in seconds>;...
+		// The first entry is always this peer so the receiver learns about the sender
+		long now = System.currentTimeMillis();
+		StringBuilder message = new StringBuilder("P:" + config.host_ip + "," + config.neighbor_port + "," + config.sharing_port + ",0");
+		for (Entry e: freshest(count)) {
+			message.append(";" + e.ip + "," + e.neighbor_port + "," + e.sharing_port + "," + (now - e.lastSeen) / 1000);
+		}
+		return message.toString();
+	}
+
+	public Entry merge(ConfigObject config, String message) {
+		// Add every well formed entry of a peer exchange message to the table
+		// Returns the first entry, which describes the sender, or null if the message is malformed
+		long now = System.currentTimeMillis();
+		Entry sender = null;
+		if (message.length() < 2) {
+			return null;
+		}
+		String[] peers = message.substring(2).split(";");
+		for (int i = 0; i < peers.length; i++) {
+			String[] fields = peers[i].split(",");
+			if (fields.length != 4) {
+				continue;
+			}
+			// Entries become neighbors, so only IPv4 addresses and ports from 1 to 65535 are taken
+			int neighborPort = NeighborRouter.parsePort(fields[1]), sharingPort = NeighborRouter.parsePort(fields[2]);
+			if (!validIp(fields[0]) || neighborPort < 0 || sharingPort < 0) {
+				continue;
+			}
+			Entry e;
+			try {
+				// Negative ages are taken as just seen, and ages are capped so they can't overflow
+				long age = Math.min(Math.max(0, Long.parseLong(fields[3])), maxAge);
+				e = new Entry(fields[0], neighborPort, sharingPort, now - age * 1000);
+			} catch (NumberFormatException ex) {
+				continue;
+			}
+			if (i == 0) {
+				sender = e;
+			}
+			// Never add this peer to its own table
+			if (e.ip.equals(config.host_ip) && e.neighbor_port == config.neighbor_port) {
+				continue;
+			}
+			add(e.ip, e.neighbor_port, e.sharing_port, e.lastSeen);
+		}
+		return sender;
+	}
+
+	private static boolean validIp(String ip) {
+		String[] parts = ip.split("\\.", -1);
+		if (parts.length != 4) {
+			return false;
+		}
+		for (String part: parts) {
+			if (!part.matches("[0-9]{1,3}") || Integer.parseInt(part) > 255) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void expire() {
+		long cutoff = System.currentTimeMillis() - maxAge;
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().lastSeen < cutoff) {
+				it.remove();
+			}
+		}
+	}
+}
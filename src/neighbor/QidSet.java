@@ -0,0 +1,52 @@
+package src.neighbor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class QidSet {
+	// Query IDs this peer has already seen, so copies of a query that arrive over another path are dropped
+	// IDs expire after a fixed time, and the total number of IDs is capped
+	// Every ID has the same lifetime, so insertion order is also expiration order
+
+	private LinkedHashMap<String, Long> qids;
+	private long timeout;
+
+	public QidSet(final int maxQids, long t) {
+		timeout = t;
+		qids = new LinkedHashMap<String, Long>() {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				// Forget the oldest ID when the set is full
+				return size() > maxQids;
+			}
+		};
+	}
+
+	public synchronized boolean add(String qid) {
+		// Returns false if the ID was already seen
+		expire();
+		if (qids.containsKey(qid)) {
+			return false;
+		}
+		qids.put(qid, System.currentTimeMillis() + timeout);
+		return true;
+	}
+
+	public synchronized int size() {
+		expire();
+		return qids.size();
+	}
+
+	private void expire() {
+		long now = System.currentTimeMillis();
+		Iterator<Long> it = qids.values().iterator();
+		while (it.hasNext()) {
+			if (it.next() > now) {
+				break;
+			}
+			it.remove();
+		}
+	}
+}
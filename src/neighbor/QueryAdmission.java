@@ -0,0 +1,74 @@
+package src.neighbor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import src.config.ConfigObject;
+import src.log.Log;
+import src.log.Logger;
+
+public class QueryAdmission {
+	// Limits the queries this peer takes from its neighbors, so one flooding peer can't be amplified across the overlay
+	// Each incoming connection gets a token bucket, and queries over its rate are dropped before they are parsed
+	// Forwarding has one token bucket for the whole peer, when it is empty queries are still answered if the file
+	// is here but are not forwarded
+	// Queries from this host never take tokens, and full neighbor queues drop forwarded queries first (see QueryQueue)
+
+	private static final Logger log = Log.getLogger("neighbor.admission");
+
+	// A neighbor is back under its limit once none of its queries were dropped for this long
+	private static final long quietTime = 1000;
+
+	private ConfigObject config;
+	private TokenBucket forwardLimit;
+	private AtomicLong refused, shed;
+
+	public QueryAdmission(ConfigObject c) {
+		config = c;
+		forwardLimit = new TokenBucket(config.forwardRate, config.forwardBurst);
+		refused = new AtomicLong();
+		shed = new AtomicLong();
+	}
+
+	public TokenBucket connectionLimit() {
+		return new TokenBucket(config.queryRate, config.queryBurst);
+	}
+
+	public boolean admit(TokenBucket limit, String source) {
+		// Returns false if the query should be dropped without being read
+		long now = System.currentTimeMillis();
+		if (limit.take()) {
+			if (limit.limited && now - limit.lastRefused >= quietTime) {
+				limit.limited = false;
+				log.info("Neighbor query rate is back under the limit", "neighbor", source, "dropped", limit.refusedSinceLimited);
+			}
+			return true;
+		}
+		refused.incrementAndGet();
+		limit.lastRefused = now;
+		if (!limit.limited) {
+			limit.limited = true;
+			limit.refusedSinceLimited = 0;
+			log.warn("Neighbor is sending queries faster than the limit, dropping queries", "neighbor", source, "rate", config.queryRate);
+		}
+		limit.refusedSinceLimited++;
+		return false;
+	}
+
+	public boolean forward(String qid) {
+		// Returns false if the query should not be forwarded because this peer is forwarding too many queries
+		if (forwardLimit.take()) {
+			return true;
+		}
+		shed.incrementAndGet();
+		log.debug("Forwarding limit reached, query not forwarded", "qid", qid);
+		return false;
+	}
+
+	public long getRefused() {
+		return refused.get();
+	}
+
+	public long getShed() {
+		return shed.get();
+	}
+}
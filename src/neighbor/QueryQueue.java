@@ -0,0 +1,69 @@
+package src.neighbor;
+
+import java.util.ArrayDeque;
+
+import src.sharing.Query;
+
+public class QueryQueue {
+	// Bounded queue of queries waiting to be sent to one neighbor
+	// Queries from this host are sent before forwarded ones, so "get" is not stuck behind a query storm
+	// When the queue is full the oldest forwarded query is dropped, a query from this host is only
+	// dropped if every waiting query is from this host
+	// A queue that is mostly full marks its neighbor as congested, and forwarded queries avoid it
+
+	private ArrayDeque<Query> local, forwarded;
+	private int capacity, congested;
+	private long dropped;
+
+	public QueryQueue(int size, double congestedFraction) {
+		local = new ArrayDeque<Query>();
+		forwarded = new ArrayDeque<Query>();
+		capacity = size;
+		congested = (int) (size * congestedFraction);
+	}
+
+	public synchronized boolean add(Query query) {
+		// Returns false if the query itself was dropped
+		boolean isLocal = query.querySource == null;
+		if (size() >= capacity) {
+			dropped++;
+			if (!forwarded.isEmpty()) {
+				forwarded.poll();
+			}
+			else if (isLocal) {
+				local.poll();
+			}
+			else {
+				return false;
+			}
+		}
+		(isLocal ? local : forwarded).add(query);
+		return true;
+	}
+
+	public synchronized Query poll() {
+		Query query = local.poll();
+		return query != null ? query : forwarded.poll();
+	}
+
+	public synchronized int size() {
+		return local.size() + forwarded.size();
+	}
+
+	public synchronized boolean isCongested() {
+		return size() >= congested;
+	}
+
+	public synchronized double fill() {
+		return (double) size() / capacity;
+	}
+
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	public synchronized void clear() {
+		local.clear();
+		forwarded.clear();
+	}
+}
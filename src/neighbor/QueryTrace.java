@@ -0,0 +1,63 @@
+package src.neighbor;
+
+import java.util.Random;
+
+import src.config.ConfigObject;
+import src.log.Log;
+import src.log.Logger;
+
+public class QueryTrace {
+	// Per-hop timing for a sample of queries
+	// A traced query is sent as Q:<QID>;<filename>;T and every peer that handles it keeps the time it was recieved
+	// The peer with the file answers R:<QID>;<peer IP>:<peer port>;<filename>;<hop>, and every peer on the
+	// reverse path appends its own hop, so the originator sees the whole path
+	// A hop is <IP>-<neighbor port>-<time recieved>-<time sent on>, in milliseconds of that peer's clock
+	// For relays "sent on" is when the query left the queue towards the neighbor that answered,
+	// for the peer with the file it is when the response was sent
+
+	private static final Logger log = Log.getLogger("neighbor.trace");
+
+	private static final Random random = new Random();
+
+	public static boolean sample(ConfigObject config) {
+		double rate = config.traceRate;
+		return rate > 0 && (rate >= 1 || random.nextDouble() < rate);
+	}
+
+	public static String hop(ConfigObject config, long received, long sent) {
+		return config.host_ip + "-" + config.neighbor_port + "-" + received + "-" + sent;
+	}
+
+	public static void report(String qid, String filename, long sent, long received, String trace) {
+		// Prints the path from this host to the peer with the file
+		// Times are relative to when this host sent the query, so they are only exact if the peers' clocks agree
+		// The time each peer held the query is measured on one clock and is always exact
+		String[] hops = trace.split(",");
+		StringBuilder report = new StringBuilder();
+		report.append("Trace of query ").append(qid).append(" for '").append(filename).append("', ")
+				.append(received - sent).append(" ms round trip:");
+		long slowest = -1;
+		String slowestPeer = null;
+		try {
+			// Hops were appended on the way back, so the peer with the file is first
+			for (int i = hops.length - 1; i >= 0; i--) {
+				String[] hop = hops[i].split("-");
+				String peer = hop[0] + ":" + hop[1];
+				long in = Long.parseLong(hop[2]), out = Long.parseLong(hop[3]);
+				report.append(System.lineSeparator()).append("  ").append(i == 0 ? "answered by " : "relayed by ").append(peer)
+						.append(": recieved at +").append(in - sent).append(" ms, ")
+						.append(i == 0 ? "responded" : "forwarded").append(" at +").append(out - sent)
+						.append(" ms, held ").append(out - in).append(" ms");
+				if (out - in > slowest) {
+					slowest = out - in;
+					slowestPeer = peer;
+				}
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			log.warn("Malformed query trace recieved", "qid", qid, "trace", trace);
+			return;
+		}
+		System.out.println(report);
+		log.info("Query trace", "qid", qid, "file", filename, "hops", hops.length, "ms", received - sent, "slowest", slowestPeer, "held", slowest, "trace", trace);
+	}
+}
@@ -0,0 +1,126 @@
+package src.neighbor;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class RouteTable {
+	// Reverse path routes used to send responses back towards the source of a query
+	// Routes expire after a fixed time, and the total number of routes is capped
+	// Every route has the same lifetime, so insertion order is also expiration order
+
+	public interface ResponseListener {
+		// Called by the connection thread that recieved a response to a query from this host
+		void onResponse(String qid, String fileServer, int filePort, String filename);
+	}
+
+	public static class Route {
+		// querySource is null when the query originated from this host
+		// listener is set when something other than a plain download should handle the responses
+		public PrintWriter querySource;
+		public ResponseListener listener;
+		public String filename;
+		public long expireTime;
+		public int responses;
+		// Only kept for traced queries: when the query was recieved and when it was sent to each neighbor
+		public boolean traced;
+		public long received;
+		public HashMap<Neighbor, Long> sent;
+
+		public Route(PrintWriter qs, ResponseListener l, String f, long e) {
+			querySource = qs;
+			listener = l;
+			filename = f;
+			expireTime = e;
+		}
+	}
+
+	private LinkedHashMap<String, Route> routes;
+	private long routeTimeout;
+	private int maxResponses;
+
+	public RouteTable(final int maxRoutes, long timeout, int responses) {
+		routeTimeout = timeout;
+		maxResponses = responses;
+		routes = new LinkedHashMap<String, Route>() {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Route> eldest) {
+				// Drop the oldest route when the table is full
+				return size() > maxRoutes;
+			}
+		};
+	}
+
+	public synchronized void add(String qid, PrintWriter querySource, String filename) {
+		add(qid, querySource, filename, null);
+	}
+
+	public synchronized void add(String qid, PrintWriter querySource, String filename, ResponseListener listener) {
+		expire();
+		// Keep the first route for a QID, later copies of the query are duplicates
+		if (!routes.containsKey(qid)) {
+			routes.put(qid, new Route(querySource, listener, filename, System.currentTimeMillis() + routeTimeout));
+		}
+	}
+
+	public synchronized Route get(String qid) {
+		expire();
+		return routes.get(qid);
+	}
+
+	public synchronized void trace(String qid, long received) {
+		Route route = routes.get(qid);
+		if (route != null && !route.traced) {
+			route.traced = true;
+			route.received = received;
+			route.sent = new HashMap<Neighbor, Long>();
+		}
+	}
+
+	public synchronized void sent(String qid, Neighbor n, long time) {
+		Route route = routes.get(qid);
+		if (route != null && route.traced && !route.sent.containsKey(n)) {
+			route.sent.put(n, time);
+		}
+	}
+
+	public synchronized long sentTime(Route route, Neighbor n) {
+		// When the query was sent to the neighbor a response came from
+		// Responses from an unknown neighbor fall back to when the query was recieved
+		Long time = n == null ? null : route.sent.get(n);
+		return time != null ? time : route.received;
+	}
+
+	public synchronized boolean countResponse(Route route) {
+		// Several peers can answer the same query, relay their responses up to a limit
+		if (route.responses >= maxResponses) {
+			return false;
+		}
+		route.responses++;
+		return true;
+	}
+
+	public synchronized void removeSource(PrintWriter querySource) {
+		// The connection the queries came from closed, responses can no longer be delivered
+		Iterator<Route> it = routes.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().querySource == querySource) {
+				it.remove();
+			}
+		}
+	}
+
+	private void expire() {
+		long now = System.currentTimeMillis();
+		Iterator<Route> it = routes.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().expireTime > now) {
+				break;
+			}
+			it.remove();
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package src.neighbor;
+
+public class TokenBucket {
+	// Allows rate events per second on average, with bursts of up to burst events
+	// The bucket starts full and refills continuously, an event takes one token or is refused
+
+	private double rate, burst, tokens;
+	private long last;
+
+	// Set while events are being refused, so a flood is logged once instead of once per event
+	boolean limited;
+	long refusedSinceLimited, lastRefused;
+
+	public TokenBucket(double r, double b) {
+		rate = r;
+		burst = b;
+		tokens = b;
+		last = System.nanoTime();
+	}
+
+	public synchronized boolean take() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+		last = now;
+		if (tokens < 1) {
+			return false;
+		}
+		tokens -= 1;
+		return true;
+	}
+}
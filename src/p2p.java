@@ -7,13 +7,31 @@ import java.nio.file.FileSystems;
 import java.util.ArrayList;
 import java.util.Scanner;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import src.config.ConfigObject;
+import src.dht.Contact;
+import src.dht.DhtNode;
+import src.log.Level;
+import src.log.Log;
+import src.neighbor.ContentSummary;
+import src.neighbor.DatagramTransport;
 import src.neighbor.Neighbor;
+import src.neighbor.NeighborRouter;
 import src.neighbor.NeighborServerThread;
-import src.neighbor.OutgoingNeighborConnectionThread;
-import src.sharing.Query;
+import src.neighbor.NeighborSupervisorThread;
+import src.neighbor.PeerTable;
+import src.neighbor.QidSet;
+import src.neighbor.QueryAdmission;
+import src.neighbor.QueryQueue;
+import src.neighbor.RouteTable;
+import src.sharing.BatchGet;
+import src.sharing.FileDownload;
+import src.sharing.FileCache;
+import src.sharing.FileStore;
+import src.sharing.SharedCatalog;
 import src.sharing.SharingServerThread;
 
 public class p2p {
@@ -21,7 +39,11 @@ public class p2p {
 	public static ConfigObject config;
 	public static SharingServerThread sharingServerThread;
 	public static NeighborServerThread neighborServerThread;
-	public static ConcurrentLinkedQueue<String> qids;
+	public static NeighborSupervisorThread neighborSupervisorThread;
+	public static DatagramTransport datagramTransport;
+	public static DhtNode dhtNode;
+	public static boolean dhtLookup;
+	public static QidSet qids;
 	public static boolean left;
 
 	public static void main(String[] args) {
@@ -31,19 +53,48 @@ public class p2p {
 		// Read configuration files and set values in config object
 		if (!initializeConfig()) {
 			System.out.println("Please fix configuation issue(s) and try again");
+			Log.stop();
 			return;
 		}
 
-		// Start list of qids that will be shared across threads to prevent broadcast storms
-		qids = new ConcurrentLinkedQueue<String>();
+		// Relays can keep copies of popular files, see the "cache" command
+		config.cache = new FileCache(config, download);
+
+		// Start set of qids that will be shared across threads to prevent broadcast storms
+		qids = new QidSet(config.maxQids, config.qidTimeout);
 
 		// Open two sockets, one for handling incoming neighbor connections, one for serving file requests
 		sharingServerThread = new SharingServerThread(config);
 		sharingServerThread.start();
 		neighborServerThread = new NeighborServerThread(config, qids);
 		neighborServerThread.start();
+		// Queries, responses and heartbeats can also be recieved over UDP on the neighbor port
+		datagramTransport = new DatagramTransport(config, qids, download);
+		datagramTransport.start();
+		if (datagramTransport.isBound()) {
+			config.datagrams = datagramTransport;
+		}
 		System.out.println("Peer started. Listening for connections on ports " + config.neighbor_port + " and " + config.sharing_port);
 
+		// Connect to the neighbors in config_neighbors.txt and keep the connections open
+		neighborSupervisorThread = new NeighborSupervisorThread(config, download);
+		neighborSupervisorThread.start();
+
+		// Join the DHT over UDP on the sharing port, using the configured neighbors as bootstrap nodes
+		// Every shared file is published with this peer's sharing server as its provider
+		dhtNode = new DhtNode(config.host_ip, config.sharing_port);
+		if (dhtNode.isBound()) {
+			dhtNode.start();
+			ArrayList<Contact> bootstrap = new ArrayList<Contact>();
+			for (Neighbor n: config.neighbors) {
+				bootstrap.add(new Contact(null, n.ip, n.sharing_port));
+			}
+			dhtNode.join(bootstrap);
+			for (String f: config.shared_files) {
+				dhtNode.publish(f, config.host_ip + ":" + config.sharing_port);
+			}
+		}
+
 		// Accept user input
 		Scanner scan = new Scanner(System.in);
 		String command = "";
@@ -60,40 +111,151 @@ public class p2p {
 					break;
 				}
 
-				// Calculate a unique query ID using the IP of this host and the last 6 digits of the current time in milliseconds (over 15 minutes)
-				String ipShort = config.host_ip.replaceAll("\\.", "");
-				String currTime = Long.toString(System.currentTimeMillis());
-				String qid = ipShort + currTime.substring(currTime.length()-6);
-
-				// Add qid to the list of qids in case this query is forwarded back in a loop
-				qids.add(qid);
+				// In DHT mode the providers are looked up in the DHT instead of flooding a query
+				if (dhtLookup) {
+					dhtGet(splitCommand[1], download);
+					break;
+				}
 
-				// Add the query to the command lists for each outgoing neighbor connection
-				// The "out" param of the query is null to indicate this peer is the original source of the query
-				String query = "Q:" + qid + ";" + splitCommand[1];
-				for (Neighbor n: config.neighbors) {
-					n.queries.add(new Query(null, qid, query, splitCommand[1]));
+				// Add the query to the command lists for the healthiest outgoing neighbors whose summaries match the file
+				// Without a listener, responses are handled by downloading the file
+				if (!NeighborRouter.query(config, qids, NeighborRouter.nextQid(config), splitCommand[1], null)) {
+					System.out.println("No neighbor connections are available, query was not sent");
+					break;
 				}
 				// The query has been sent and all status updates will come from the neighbor connection threads
 				// Resume taking commands from user
 				break;
+			case "batch":
+				// batch <manifest file> [queries in flight]
+				if (splitCommand.length < 2 || splitCommand[1].equals("")) {
+					System.out.println("Invalid command format for 'batch'");
+					break;
+				}
+				int window = config.batchWindow;
+				if (splitCommand.length > 2) {
+					try {
+						window = Integer.parseInt(splitCommand[2]);
+					} catch (NumberFormatException e) {
+						window = 0;
+					}
+					if (window <= 0) {
+						System.out.println("Invalid number of queries in flight for 'batch'");
+						break;
+					}
+				}
+				// The batch runs in its own thread and prints a summary when it is done
+				new BatchGet(config, qids, download, splitCommand[1], window).start();
+				break;
+			case "mode":
+				// Choose how "get" finds files: flooding queries to neighbors or looking them up in the DHT
+				if (splitCommand.length == 2 && splitCommand[1].equalsIgnoreCase("flood")) {
+					dhtLookup = false;
+					System.out.println("Using neighbor queries for 'get'");
+				}
+				else if (splitCommand.length == 2 && splitCommand[1].equalsIgnoreCase("dht")) {
+					// The node is stopped by "leave" and does not start again
+					if (dhtNode.isRunning()) {
+						dhtLookup = true;
+						System.out.println("Using DHT lookups for 'get'");
+					}
+					else {
+						System.out.println("The DHT node is not running, 'get' keeps using neighbor queries");
+					}
+				}
+				else {
+					System.out.println("Invalid command format for 'mode', use 'mode flood' or 'mode dht'");
+				}
+				break;
+			case "transport":
+				// Choose how outgoing neighbors are reached: a TCP connection each, or datagrams from one thread
+				// The supervisor closes or reopens the TCP connections on its next check
+				if (splitCommand.length == 2 && splitCommand[1].equalsIgnoreCase("tcp")) {
+					config.udpNeighbors = false;
+					System.out.println("Using TCP connections for neighbor messages");
+				}
+				else if (splitCommand.length == 2 && splitCommand[1].equalsIgnoreCase("udp") && datagramTransport.isBound()) {
+					config.udpNeighbors = true;
+					System.out.println("Using UDP datagrams for neighbor messages");
+				}
+				else {
+					System.out.println("Invalid command format for 'transport', use 'transport tcp' or 'transport udp'");
+				}
+				break;
+			case "loglevel":
+				// Change which log records are written, e.g. "loglevel debug" to log every message
+				try {
+					Log.setLevel(Level.valueOf(splitCommand[1].toUpperCase()));
+					System.out.println("Log level set to " + Log.getLevel() + ", " + Log.getDropped() + " records dropped so far");
+				} catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+					System.out.println("Invalid command format for 'loglevel', use debug, info, warn or error");
+				}
+				break;
+			case "trace":
+				// Trace a fraction of queries from this host, e.g. "trace 1" to trace every query and "trace 0" to stop
+				try {
+					double rate = Double.parseDouble(splitCommand[1]);
+					if (!(rate >= 0 && rate <= 1)) {
+						throw new NumberFormatException();
+					}
+					config.traceRate = rate;
+					System.out.println("Tracing " + (rate * 100) + "% of queries");
+				} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+					System.out.println("Invalid command format for 'trace', use a fraction of queries between 0 and 1");
+				}
+				break;
+			case "stats":
+				// Counters for queries this peer dropped to protect itself and the overlay
+				long queued = 0;
+				for (Neighbor n: config.neighbors) {
+					queued += n.queries.getDropped();
+				}
+				System.out.println("Queries dropped over neighbor rate limits: " + config.admission.getRefused());
+				System.out.println("Queries not forwarded over the forwarding limit: " + config.admission.getShed());
+				System.out.println("Queries dropped from full neighbor queues: " + queued);
+				System.out.println("Log records dropped: " + Log.getDropped());
+				System.out.println("Cached files: " + config.cache.size() + " (" + config.cache.bytes() + " bytes), caching is " + (config.cache.enabled ? "on" : "off"));
+				break;
+			case "direct":
+				// Ask peers with the file to answer this host directly over UDP, the reverse path is the fallback
+				if (splitCommand.length == 2 && splitCommand[1].equalsIgnoreCase("on") && datagramTransport.isRunning()) {
+					config.directResponses = true;
+					System.out.println("Responses to queries from this peer are sent directly");
+				}
+				else if (splitCommand.length == 2 && splitCommand[1].equalsIgnoreCase("off")) {
+					config.directResponses = false;
+					System.out.println("Responses to queries from this peer follow the reverse path");
+				}
+				else {
+					System.out.println("Invalid command format for 'direct', use 'direct on' or 'direct off'");
+				}
+				break;
+			case "cache":
+				// Let this peer keep copies of popular files it relays responses for
+				if (splitCommand.length == 2 && splitCommand[1].equalsIgnoreCase("on")) {
+					config.cache.enabled = true;
+					System.out.println("Caching popular files relayed through this peer");
+				}
+				else if (splitCommand.length == 2 && splitCommand[1].equalsIgnoreCase("off")) {
+					config.cache.enabled = false;
+					System.out.println("Stopped caching files, cached files are still served");
+				}
+				else {
+					System.out.println("Invalid command format for 'cache', use 'cache on' or 'cache off'");
+				}
+				break;
 			case "leave":
 				leave();
 				left = true;
 				break;
 			case "connect":
-				left = false;
-				for (Neighbor n: config.neighbors) {
-					// If the neighbor connection thread does not exist or has terminated
-					if (n.t == null || !n.t.isAlive()) {
-						// Create a new connection
-						System.out.println("Attempting to create neighbor connection with " + n.ip);
-						int nextPort = config.openPorts.poll();
-						n.nct = new OutgoingNeighborConnectionThread(config, n, download, nextPort);
-						Thread nt = n.nct.start();
-						n.t = nt;
-					}
+				// Restart the supervisor if the peer left, otherwise retry disconnected neighbors immediately
+				if (left) {
+					left = false;
+					neighborSupervisorThread = new NeighborSupervisorThread(config, download);
+					neighborSupervisorThread.start();
 				}
+				neighborSupervisorThread.retryNow();
 				break;
 			case "exit":
 				// If "leave" was already given as a command, don't try to close connections again
@@ -102,6 +264,8 @@ public class p2p {
 				}
 				// Close the scanner, since command = "exit" the main loop will end, stopping the peer
 				scan.close();
+				// Write any log records that are still buffered
+				Log.stop();
 				break;
 			default:
 				System.out.println("Unrecognized command");
@@ -113,6 +277,9 @@ public class p2p {
 
 	// Stop all threads hosting TCP connections
 	private static void leave() {
+		// Stop reconnecting before closing the connections
+		neighborSupervisorThread.stopThread();
+
 		// Stop outgoing neighbor connection threads
 		for (Neighbor n: config.neighbors) {
 			// If the neighbor connection thread exists and is alive
@@ -128,6 +295,30 @@ public class p2p {
 		// Stop sharing and neighbor servers
 		sharingServerThread.stopServer();
 		neighborServerThread.stopServer();
+		datagramTransport.stopTransport();
+		if (dhtNode.isRunning()) {
+			dhtNode.stopNode();
+			dhtLookup = false;
+		}
+	}
+
+	private static void dhtGet(final String filename, final Semaphore download) {
+		// Look up the file in a separate thread so the command loop isn't blocked
+		new Thread(new Runnable() {
+			public void run() {
+				DhtNode.Lookup lookup = dhtNode.find(filename);
+				String self = config.host_ip + ":" + config.sharing_port;
+				lookup.providers.remove(self);
+				if (lookup.providers.isEmpty()) {
+					System.out.println("No providers for '" + filename + "' found in the DHT after " + lookup.hops + " hops");
+					return;
+				}
+				System.out.println("Found " + lookup.providers.size() + " provider(s) for '" + filename + "' in the DHT after " + lookup.hops + " hops");
+
+				// Download from all of the providers at once
+				FileDownload.download(config, download, lookup.providers, filename);
+			}
+		}, "DHT Lookup").start();
 	}
 
 	private static boolean initializeConfig() {
@@ -138,6 +329,12 @@ public class p2p {
 
 		config = new ConfigObject();
 
+		// Protocol events are written to the log file by a background thread instead of the console
+		// Started first so that loading the configuration can be logged
+		if (!Log.start(config.log_file, config.logMaxBytes, config.logFiles, config.logBufferSize)) {
+			System.out.println("Could not open log file '" + config.log_file + "', logging is disabled");
+		}
+
 		/** Get the local ports this peer will be using for sharing and neighbor servers
 		 * config_peer.txt has the format:
 		 *
@@ -172,23 +369,14 @@ public class p2p {
 		 * file1
 		 * file2
 		 * ...
+		 *
+		 * The catalog is loaded from its snapshot, and the list and files are only read again if they changed
 		 */
 		try {
-			br = new BufferedReader(new FileReader("config/config_sharing.txt"));
+			config.shared_files = SharedCatalog.load(new File("config/config_sharing.txt"), new File(config.shared_dir), new File(config.catalog_file));
 		} catch (FileNotFoundException e) {
 			System.out.println("Could not find 'config_sharing.txt'");
 			return false;
-		}
-		try {
-			ArrayList<String> sharing = new ArrayList<String>();
-			// Lines are files
-			line = br.readLine();
-			while(line != null) {
-				sharing.add(line);
-				line = br.readLine();
-			}
-			br.close();
-			config.shared_files = sharing;
 		} catch (IOException e) {
 			System.out.println("Could not read 'config_sharing.txt'");
 			return false;
@@ -226,7 +414,8 @@ public class p2p {
 				line = br.readLine();
 			}
 			br.close();
-			config.neighbors = neighbor_list;
+			// Neighbors may be added and removed later by peer exchange while other threads iterate the list
+			config.neighbors = new CopyOnWriteArrayList<Neighbor>(neighbor_list);
 		} catch (IOException e) {
 			System.out.println("Could not read 'config_neighbors.txt'");
 			return false;
@@ -244,7 +433,29 @@ public class p2p {
 
 		// Initialize the lists that will be used to pass queries to the neighbor connection threads
 		for (Neighbor n: config.neighbors) {
-			n.queries = new ConcurrentLinkedQueue<Query>();
+			n.queries = new QueryQueue(config.queryQueueSize, config.queryQueueCongested);
+		}
+
+		config.incomingNeighbors = new AtomicInteger();
+		config.routes = new RouteTable(config.maxRoutes, config.routeTimeout, config.maxRouteResponses);
+		config.admission = new QueryAdmission(config);
+
+		// Obtained files and downloads in progress are served along with the shared files
+		config.files = new FileStore(config);
+
+		// Summarize the shared and obtained files for neighbors deciding where to send queries
+		config.summary = new ContentSummary(config);
+		for (String f: config.shared_files) {
+			config.summary.addLocal(f);
+		}
+		for (String f: config.files.obtained()) {
+			config.summary.addLocal(f);
+		}
+
+		// Start the peer table with the configured neighbors, more peers are learned through peer exchange
+		config.peers = new PeerTable(config.peerTableSize, config.peerMaxAge);
+		for (Neighbor n: config.neighbors) {
+			config.peers.add(n.ip, n.neighbor_port, n.sharing_port, System.currentTimeMillis());
 		}
 
 		// All configuation variables were set successfully
@@ -0,0 +1,193 @@
+package src.sharing;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import src.config.ConfigObject;
+import src.neighbor.NeighborRouter;
+import src.neighbor.QidSet;
+import src.neighbor.RouteTable;
+
+public class BatchGet implements Runnable, RouteTable.ResponseListener {
+	// Thread for getting every file listed in a manifest, one filename per line
+	// Queries are pipelined with a bounded number in flight, and the first response to each is downloaded by a pool of download threads
+	// A summary with the hit rate, lookup latency and throughput is printed at the end
+
+	private ConfigObject config;
+	private QidSet qids;
+	private Semaphore download;
+	private String manifest;
+	private int window;
+	private Thread t;
+
+	// Permits for queries in flight, and the send time in nanoseconds of each query waiting for its first response
+	private Semaphore inFlight;
+	private ConcurrentHashMap<String, Long> pending;
+	private ExecutorService downloads;
+
+	private ArrayList<Long> latencies;
+	private AtomicInteger hits, misses, present, completed, failed;
+	private AtomicLong bytes;
+
+	public BatchGet(ConfigObject c, QidSet q, Semaphore d, String m, int w) {
+		config = c;
+		qids = q;
+		download = d;
+		manifest = m;
+		window = w;
+		inFlight = new Semaphore(window);
+		pending = new ConcurrentHashMap<String, Long>();
+		latencies = new ArrayList<Long>();
+		hits = new AtomicInteger();
+		misses = new AtomicInteger();
+		present = new AtomicInteger();
+		completed = new AtomicInteger();
+		failed = new AtomicInteger();
+		bytes = new AtomicLong();
+	}
+
+	public Thread start() {
+		if (t == null) {
+			t = new Thread (this, "Batch Get");
+			t.start();
+		}
+		return t;
+	}
+
+	public void run() {
+		// Read the manifest
+		ArrayList<String> filenames = new ArrayList<String>();
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(manifest));
+			String line = br.readLine();
+			while (line != null) {
+				if (!line.trim().equals("")) {
+					filenames.add(line.trim());
+				}
+				line = br.readLine();
+			}
+			br.close();
+		} catch (IOException e) {
+			System.out.println("Could not read manifest '" + manifest + "'");
+			return;
+		}
+
+		System.out.println("Getting " + filenames.size() + " files from '" + manifest + "' with " + window + " queries in flight");
+		long startTime = System.nanoTime();
+		downloads = Executors.newFixedThreadPool(config.batchDownloads);
+
+		try {
+			for (String filename: filenames) {
+				// Files that were already obtained don't need a query
+				if (new File(config.obtained_dir + filename).exists()) {
+					present.incrementAndGet();
+					continue;
+				}
+
+				// Wait for a free slot in the window, giving up on queries that timed out
+				while (!inFlight.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+					expireQueries();
+				}
+				expireQueries();
+
+				// Register the query before sending it so an early response is not missed
+				String qid = NeighborRouter.nextQid(config);
+				pending.put(qid, System.nanoTime());
+				if (!NeighborRouter.query(config, qids, qid, filename, this)) {
+					if (pending.remove(qid) != null) {
+						misses.incrementAndGet();
+						inFlight.release();
+					}
+				}
+			}
+
+			// Wait for the remaining queries to be answered or time out
+			while (!inFlight.tryAcquire(window, 100, TimeUnit.MILLISECONDS)) {
+				expireQueries();
+			}
+
+			// Then for the downloads to finish
+			downloads.shutdown();
+			downloads.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			downloads.shutdownNow();
+			System.out.println("Batch get from '" + manifest + "' was interrupted");
+			return;
+		}
+
+		printSummary(filenames.size(), System.nanoTime() - startTime);
+	}
+
+	public void onResponse(String qid, String fileServer, int filePort, final String filename) {
+		// Only the first response to each query is used, later ones and ones after the timeout are ignored
+		// Later responses still add their peer to the download if it is running
+		Long sendTime = pending.remove(qid);
+		if (sendTime == null) {
+			config.files.addProvider(filename, fileServer + ":" + filePort);
+			return;
+		}
+		synchronized (latencies) {
+			latencies.add(System.nanoTime() - sendTime);
+		}
+		hits.incrementAndGet();
+		inFlight.release();
+
+		// Download in the pool so the neighbor connection thread can go back to reading responses
+		final String server = fileServer;
+		final int port = filePort;
+		downloads.execute(new Runnable() {
+			public void run() {
+				if (FileDownload.download(config, download, server, port, filename)) {
+					completed.incrementAndGet();
+					bytes.addAndGet(new File(config.obtained_dir + filename).length());
+				}
+				else {
+					failed.incrementAndGet();
+				}
+			}
+		});
+	}
+
+	private void expireQueries() {
+		long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(config.batchQueryTimeout);
+		Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Long> e = it.next();
+			// Removing through the map makes sure a response arriving at the same time isn't counted twice
+			if (e.getValue() < cutoff && pending.remove(e.getKey()) != null) {
+				misses.incrementAndGet();
+				inFlight.release();
+			}
+		}
+	}
+
+	private void printSummary(int total, long elapsed) {
+		double seconds = elapsed / 1e9;
+		int queried = hits.get() + misses.get();
+		double megabytes = bytes.get() / (1024.0 * 1024.0);
+
+		System.out.println("Batch get from '" + manifest + "' finished in " + String.format("%.1f", seconds) + " s");
+		System.out.println("  Files: " + total + " listed, " + present.get() + " already obtained, " + queried + " queried");
+		System.out.println("  Hit rate: " + hits.get() + "/" + queried + String.format(" (%.1f%%)", queried == 0 ? 0 : 100.0 * hits.get() / queried));
+		synchronized (latencies) {
+			if (!latencies.isEmpty()) {
+				Collections.sort(latencies);
+				System.out.println("  Lookup latency: p50 " + percentile(0.50) + " ms, p90 " + percentile(0.90) + " ms, p99 " + percentile(0.99) + " ms");
+			}
+		}
+		System.out.println("  Downloads: " + completed.get() + " completed, " + failed.get() + " failed, "
+				+ String.format("%.1f MB at %.2f MB/s", megabytes, seconds == 0 ? 0 : megabytes / seconds));
+	}
+
+	private long percentile(double p) {
+		// Nearest rank percentile of the sorted latencies, in milliseconds
+		int rank = (int) Math.ceil(p * latencies.size()) - 1;
+		return TimeUnit.NANOSECONDS.toMillis(latencies.get(Math.max(rank, 0)));
+	}
+}
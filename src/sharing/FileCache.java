@@ -0,0 +1,206 @@
+package src.sharing;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import src.config.ConfigObject;
+import src.log.Log;
+import src.log.Logger;
+
+public class FileCache {
+	// Copies of popular files kept by a relay, so later queries for them are answered closer to where they come from
+	// Every query this peer handles counts towards its file's popularity, and counts are halved every cacheDecayInterval
+	// While caching is on, a relayed response for a file queried at least cacheThreshold times starts a download
+	// of the file into the cache folder, with the peer in the response as the first provider
+	// The cache holds at most cacheMaxBytes, the least frequently used file is evicted first and
+	// the least recently used of those if several are tied
+	// Cached files are answered and served like obtained files, but are not added to the content summary since
+	// they can be evicted again
+
+	private static final Logger log = Log.getLogger("sharing.cache");
+
+	// Most files whose popularity is tracked
+	private static final int maxTracked = 1024;
+
+	private static class Entry {
+		long length, lastUsed;
+		int uses;
+	}
+
+	private ConfigObject config;
+	private Semaphore download;
+	private LinkedHashMap<String, Integer> popularity;
+	private HashMap<String, Entry> entries;
+	// Files whose cache download was started, until it ends
+	private HashSet<String> starting;
+	private long bytes, nextDecay;
+
+	// Set by the "cache" command, cached files are still served when it is off
+	public volatile boolean enabled;
+
+	public FileCache(ConfigObject c, Semaphore d) {
+		config = c;
+		download = d;
+		popularity = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+				// Forget the file queried least recently
+				return size() > maxTracked;
+			}
+		};
+		entries = new HashMap<String, Entry>();
+		starting = new HashSet<String>();
+		nextDecay = System.currentTimeMillis() + config.cacheDecayInterval;
+
+		// Files cached before this peer started are kept, as long as they fit
+		File[] files = new File(config.cache_dir).listFiles();
+		if (files != null) {
+			for (File f: files) {
+				if (f.isFile()) {
+					Entry e = new Entry();
+					e.length = f.length();
+					e.lastUsed = f.lastModified();
+					entries.put(f.getName(), e);
+					bytes += e.length;
+				}
+			}
+		}
+		evict(0);
+	}
+
+	public synchronized boolean contains(String filename) {
+		return entries.containsKey(filename);
+	}
+
+	public synchronized void recordQuery(String filename) {
+		// Called for every new query this peer handles
+		long now = System.currentTimeMillis();
+		if (now >= nextDecay) {
+			// Halve every count so files that were popular a while ago make way for new ones
+			Iterator<Map.Entry<String, Integer>> it = popularity.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Integer> p = it.next();
+				if (p.getValue() <= 1) {
+					it.remove();
+				}
+				else {
+					p.setValue(p.getValue() / 2);
+				}
+			}
+			for (Entry e: entries.values()) {
+				e.uses /= 2;
+			}
+			nextDecay = now + config.cacheDecayInterval;
+		}
+
+		Integer count = popularity.get(filename);
+		popularity.put(filename, count == null ? 1 : count + 1);
+		Entry e = entries.get(filename);
+		if (e != null) {
+			e.uses++;
+			e.lastUsed = now;
+		}
+	}
+
+	public void offer(final String filename, final String provider) {
+		// Called for every response this peer relays, starts caching the file if it is popular enough
+		// The provider is "<IP>:<port>" of the sharing server in the response
+		if (!FileStore.validName(filename)) {
+			return;
+		}
+		boolean running;
+		synchronized (this) {
+			Integer count = popularity.get(filename);
+			if (!enabled || count == null || count < config.cacheThreshold || entries.containsKey(filename)) {
+				return;
+			}
+			running = starting.contains(filename);
+			if (!running) {
+				if (config.files.resolve(filename) != null || config.files.partial(filename) != null) {
+					return;
+				}
+				starting.add(filename);
+			}
+		}
+
+		// Other peers in responses join a download that is already running
+		// This is done without holding the lock, since the download checks the cache size while holding its own
+		if (running) {
+			config.files.addProvider(filename, provider);
+			return;
+		}
+
+		log.info("Caching popular file", "file", filename, "provider", provider);
+		new Thread(new Runnable() {
+			public void run() {
+				ArrayList<String> providers = new ArrayList<String>();
+				providers.add(provider);
+				FileDownload.download(config, download, providers, filename, true);
+				synchronized (FileCache.this) {
+					starting.remove(filename);
+				}
+			}
+		}, "Cache Download").start();
+	}
+
+	boolean fits(long length) {
+		return length <= config.cacheMaxBytes;
+	}
+
+	synchronized void add(String filename, long length) {
+		// Called when a download into the cache folder completes
+		evict(length);
+		Entry e = new Entry();
+		e.length = length;
+		e.lastUsed = System.currentTimeMillis();
+		Integer count = popularity.get(filename);
+		e.uses = count == null ? 0 : count;
+		entries.put(filename, e);
+		bytes += length;
+		log.info("Cached file", "file", filename, "bytes", length, "cacheBytes", bytes, "files", entries.size());
+	}
+
+	synchronized File remove(String filename) {
+		// Takes a file out of the cache without deleting it, so "get" can move it into the obtained folder
+		Entry e = entries.remove(filename);
+		if (e == null) {
+			return null;
+		}
+		bytes -= e.length;
+		return new File(config.cache_dir + filename);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	private void evict(long needed) {
+		// Called while holding the lock, makes room for needed more bytes
+		while (bytes + needed > config.cacheMaxBytes && !entries.isEmpty()) {
+			String victim = null;
+			Entry worst = null;
+			for (Map.Entry<String, Entry> candidate: entries.entrySet()) {
+				Entry e = candidate.getValue();
+				if (worst == null || e.uses < worst.uses || (e.uses == worst.uses && e.lastUsed < worst.lastUsed)) {
+					victim = candidate.getKey();
+					worst = e;
+				}
+			}
+			entries.remove(victim);
+			bytes -= worst.length;
+			new File(config.cache_dir + victim).delete();
+			log.info("Evicted cached file", "file", victim, "uses", worst.uses, "bytes", worst.length);
+		}
+	}
+}
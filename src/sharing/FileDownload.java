@@ -0,0 +1,110 @@
+package src.sharing;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import src.config.ConfigObject;
+import src.log.Log;
+import src.log.Logger;
+
+public class FileDownload {
+	// Downloads a file from other peers' sharing servers into the obtained folder
+	// Used for responses to queries from the neighbor protocol and for providers found in the DHT
+	// Each file is downloaded by one SwarmDownload, and other peers found to have it join that download
+
+	private static final Logger log = Log.getLogger("sharing.download");
+
+	public static boolean download(ConfigObject config, Semaphore download, String fileServer, int filePort, String filename) {
+		List<String> providers = new ArrayList<String>();
+		providers.add(fileServer + ":" + filePort);
+		return download(config, download, providers, filename);
+	}
+
+	public static boolean download(ConfigObject config, Semaphore download, List<String> providers, String filename) {
+		return download(config, download, providers, filename, false);
+	}
+
+	public static boolean download(ConfigObject config, Semaphore download, List<String> providers, String filename, boolean cache) {
+		// Providers are "<IP>:<port>" of sharing servers that have the file
+		// With cache set the file is downloaded into the cache folder instead of the obtained folder
+		// Returns true if the file is on this host or being downloaded by another thread after the call
+		// The name comes from a response, so it is checked before it is used as a path
+		if (!FileStore.validName(filename)) {
+			log.warn("Invalid file name, not downloading", "file", filename);
+			return false;
+		}
+		try {
+			download.acquire();
+		} catch (InterruptedException e) {
+			return false;
+		}
+
+		// If the file is already here there is nothing to do, except moving a cached copy that was asked for
+		if (config.files.resolve(filename) != null) {
+			if (!cache) {
+				config.files.promote(filename);
+			}
+			download.release();
+			return true;
+		}
+
+		// If another thread is downloading the file, these providers join its swarm
+		// A file being cached that is asked for goes into the obtained folder instead
+		SwarmDownload swarm = config.files.partial(filename);
+		if (swarm != null) {
+			if (!cache) {
+				swarm.cache = false;
+			}
+			download.release();
+			for (String p: providers) {
+				swarm.addProvider(p);
+			}
+			return true;
+		}
+
+		// Otherwise registering the download while holding the semaphore claims it for this thread,
+		// so the transfer itself can run at the same time as downloads of other files
+		swarm = new SwarmDownload(config, filename, cache);
+		config.files.addPartial(swarm);
+		download.release();
+
+		log.debug("Requesting file transfer", "file", filename, "providers", providers);
+		for (String p: providers) {
+			swarm.addProvider(p);
+		}
+		return swarm.run();
+	}
+
+	static SocketChannel bindChannel(ConfigObject config) {
+		// Bind a new socket channel to one of the available local ports
+		// Ports are reused quickly when many files are downloaded, so binding is allowed while an old connection closes,
+		// and a few ports are tried in case one is still held
+		for (int attempt = 0; attempt < 3; attempt++) {
+			Integer port = config.openPorts.poll();
+			if (port == null) {
+				return null;
+			}
+			SocketChannel s = null;
+			try {
+				s = SocketChannel.open();
+				s.socket().setReuseAddress(true);
+				s.bind(new InetSocketAddress(config.host, port));
+				return s;
+			} catch (IOException e) {
+				try {
+					if (s != null) {
+						s.close();
+					}
+				} catch (IOException e1) {
+					// The socket was never connected
+				}
+				config.openPorts.add(port);
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,141 @@
+package src.sharing;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import src.config.ConfigObject;
+import src.log.Log;
+import src.log.Logger;
+
+public class FileStore {
+	// Every file this peer can serve: shared files, files it has obtained, cached files, and downloads in progress
+	// Downloads in progress can serve the chunks they have already verified
+
+	private static final Logger log = Log.getLogger("sharing.files");
+
+	private ConfigObject config;
+	private Set<String> obtained;
+	private ConcurrentHashMap<String, SwarmDownload> partial;
+	private ConcurrentHashMap<String, Manifest> manifests;
+
+	public FileStore(ConfigObject c) {
+		config = c;
+		obtained = ConcurrentHashMap.newKeySet();
+		partial = new ConcurrentHashMap<String, SwarmDownload>();
+		manifests = new ConcurrentHashMap<String, Manifest>();
+
+		// Files obtained before this peer started are served too
+		File[] files = new File(config.obtained_dir).listFiles();
+		if (files != null) {
+			for (File f: files) {
+				if (f.isFile()) {
+					obtained.add(f.getName());
+				}
+			}
+		}
+	}
+
+	public Set<String> obtained() {
+		return obtained;
+	}
+
+	public File resolve(String filename) {
+		// Returns the complete copy of the file on this peer, or null if there is none
+		if (!validName(filename)) {
+			return null;
+		}
+		if (config.shared_files.contains(filename)) {
+			return new File(config.shared_dir + filename);
+		}
+		if (obtained.contains(filename)) {
+			return new File(config.obtained_dir + filename);
+		}
+		if (config.cache.contains(filename)) {
+			return new File(config.cache_dir + filename);
+		}
+		return null;
+	}
+
+	boolean promote(String filename) {
+		// Moves a cached file into the obtained folder when it is requested with "get"
+		File cached = config.cache.remove(filename);
+		if (cached == null) {
+			return false;
+		}
+		try {
+			new File(config.obtained_dir).mkdirs();
+			Files.move(cached.toPath(), new File(config.obtained_dir + filename).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			log.warn("Could not move cached file into the obtained folder", "file", filename, "error", e);
+			return false;
+		}
+		obtained.add(filename);
+		config.summary.addLocal(filename);
+		return true;
+	}
+
+	public boolean has(String filename) {
+		// True if this peer can serve at least part of the file
+		SwarmDownload swarm = partial.get(filename);
+		return resolve(filename) != null || (swarm != null && swarm.chunksHave() > 0);
+	}
+
+	public SwarmDownload partial(String filename) {
+		return partial.get(filename);
+	}
+
+	void addPartial(SwarmDownload swarm) {
+		partial.put(swarm.filename, swarm);
+	}
+
+	void completed(SwarmDownload swarm, boolean success, boolean cached) {
+		// Once the file is in the obtained folder it is served from there
+		if (success && cached) {
+			config.cache.add(swarm.filename, swarm.manifest().length);
+		}
+		else if (success) {
+			obtained.add(swarm.filename);
+			config.summary.addLocal(swarm.filename);
+		}
+		partial.remove(swarm.filename);
+	}
+
+	public void addProvider(String filename, String provider) {
+		// Another peer that has the file, used if the file is still being downloaded
+		SwarmDownload swarm = partial.get(filename);
+		if (swarm != null) {
+			swarm.addProvider(provider);
+		}
+	}
+
+	public Manifest manifest(String filename) {
+		// Manifests of complete files are computed once and kept until the file changes
+		SwarmDownload swarm = partial.get(filename);
+		if (swarm != null && swarm.manifest() != null) {
+			return swarm.manifest();
+		}
+		File f = resolve(filename);
+		if (f == null || !f.isFile()) {
+			return null;
+		}
+		Manifest m = manifests.get(filename);
+		if (m != null && m.modified == f.lastModified() && m.length == f.length()) {
+			return m;
+		}
+		try {
+			m = Manifest.compute(f, config.chunkSize);
+		} catch (IOException e) {
+			return null;
+		}
+		manifests.put(filename, m);
+		return m;
+	}
+
+	static boolean validName(String filename) {
+		// Requests and responses can only name files directly inside this peer's folders
+		return !filename.isEmpty() && !filename.contains("/") && !filename.contains("\\") && !filename.equals("..") && !filename.equals(".");
+	}
+}
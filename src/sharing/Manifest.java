@@ -0,0 +1,133 @@
+package src.sharing;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+public class Manifest {
+	// Length, chunk size and SHA-1 hash of every chunk of a file
+	// Chunks downloaded from any peer are checked against the manifest before they are kept or served
+	//
+	// Sent by the sharing server as:
+	// M:<length>;<chunk size>;<hash of chunk 0>,<hash of chunk 1>...
+
+	public long length;
+	public int chunkSize;
+	public String[] hashes;
+	// Modification time of the file the manifest was computed from, 0 for manifests recieved from peers
+	public long modified;
+
+	public Manifest(long l, int c, String[] h) {
+		length = l;
+		chunkSize = c;
+		hashes = h;
+	}
+
+	public static Manifest compute(File file, int chunkSize) throws IOException {
+		long modified = file.lastModified();
+		long length = file.length();
+		int chunks = (int) ((length + chunkSize - 1) / chunkSize);
+		String[] hashes = new String[chunks];
+
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+		try {
+			byte[] chunk = new byte[chunkSize];
+			for (int i = 0; i < chunks; i++) {
+				int size = (int) Math.min(chunkSize, length - (long) i * chunkSize);
+				int read = 0;
+				while (read < size) {
+					int count = in.read(chunk, read, size - read);
+					if (count < 0) {
+						throw new EOFException("File changed while computing its manifest");
+					}
+					read += count;
+				}
+				hashes[i] = hash(chunk, size);
+			}
+		} finally {
+			in.close();
+		}
+
+		Manifest m = new Manifest(length, chunkSize, hashes);
+		m.modified = modified;
+		return m;
+	}
+
+	public int chunks() {
+		return hashes.length;
+	}
+
+	public int chunkLength(int i) {
+		return (int) Math.min(chunkSize, length - (long) i * chunkSize);
+	}
+
+	public boolean verify(int i, ByteBuffer data) {
+		// Checks the bytes between the buffer's position and limit without moving its position
+		if (data.remaining() != chunkLength(i)) {
+			return false;
+		}
+		MessageDigest sha1 = sha1();
+		sha1.update(data.duplicate());
+		return hashes[i].equals(hex(sha1.digest()));
+	}
+
+	public String encode() {
+		StringBuilder line = new StringBuilder("M:");
+		line.append(length).append(';').append(chunkSize).append(';');
+		for (int i = 0; i < hashes.length; i++) {
+			line.append(i == 0 ? "" : ",").append(hashes[i]);
+		}
+		return line.toString();
+	}
+
+	public static Manifest decode(String line) {
+		// Returns null if the line is not a valid manifest
+		if (!line.startsWith("M:")) {
+			return null;
+		}
+		String[] parts = line.substring(2).split(";", -1);
+		if (parts.length != 3) {
+			return null;
+		}
+		try {
+			long length = Long.parseLong(parts[0]);
+			int chunkSize = Integer.parseInt(parts[1]);
+			String[] hashes = parts[2].isEmpty() ? new String[0] : parts[2].split(",");
+			if (length < 0 || chunkSize <= 0 || hashes.length != (length + chunkSize - 1) / chunkSize) {
+				return null;
+			}
+			return new Manifest(length, chunkSize, hashes);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public boolean sameFile(Manifest other) {
+		return length == other.length && chunkSize == other.chunkSize && Arrays.equals(hashes, other.hashes);
+	}
+
+	private static String hash(byte[] data, int size) {
+		MessageDigest sha1 = sha1();
+		sha1.update(data, 0, size);
+		return hex(sha1.digest());
+	}
+
+	private static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] digest) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b: digest) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+}
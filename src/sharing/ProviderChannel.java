@@ -0,0 +1,108 @@
+package src.sharing;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+class ProviderChannel {
+	// Connection from a swarm download to one provider's sharing server
+	// Chunk data is read straight from the socket into the caller's direct buffer, so a chunk is copied
+	// once on its way from the network to the partial file
+	// The channel is non-blocking and waits on a selector, so a silent provider still times out
+
+	private SocketChannel channel;
+	private Selector selector;
+	private SelectionKey key;
+	// Bytes recieved while reading a reply line that may already belong to the chunk after it
+	private ByteBuffer pending;
+	private int timeout;
+
+	ProviderChannel(SocketChannel c, int t) {
+		channel = c;
+		timeout = t;
+		pending = ByteBuffer.allocateDirect(16384);
+		pending.limit(0);
+	}
+
+	void connect(String ip, int port) throws IOException {
+		channel.socket().connect(new InetSocketAddress(ip, port), timeout);
+		channel.socket().setTcpNoDelay(true);
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		key = channel.register(selector, 0);
+	}
+
+	void writeLine(String line) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+		while (buffer.hasRemaining()) {
+			if (channel.write(buffer) == 0) {
+				await(SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		while (true) {
+			while (pending.hasRemaining()) {
+				byte b = pending.get();
+				if (b == '\n') {
+					return new String(line.toByteArray(), StandardCharsets.UTF_8);
+				}
+				if (b != '\r') {
+					line.write(b);
+				}
+			}
+			pending.clear();
+			int count = read(pending);
+			pending.flip();
+			if (count < 0) {
+				throw new EOFException("Connection closed by provider");
+			}
+		}
+	}
+
+	void readFully(ByteBuffer buffer) throws IOException {
+		// Anything left over from the reply line comes first
+		while (pending.hasRemaining() && buffer.hasRemaining()) {
+			buffer.put(pending.get());
+		}
+		while (buffer.hasRemaining()) {
+			if (read(buffer) < 0) {
+				throw new EOFException("Connection closed by provider");
+			}
+		}
+	}
+
+	private int read(ByteBuffer buffer) throws IOException {
+		int count = channel.read(buffer);
+		while (count == 0) {
+			await(SelectionKey.OP_READ);
+			count = channel.read(buffer);
+		}
+		return count;
+	}
+
+	private void await(int ops) throws IOException {
+		key.interestOps(ops);
+		if (selector.select(timeout) == 0) {
+			throw new SocketTimeoutException("Provider did not respond for " + timeout + " ms");
+		}
+		selector.selectedKeys().clear();
+	}
+
+	void close() {
+		try {
+			if (selector != null) {
+				selector.close();
+			}
+			channel.close();
+		} catch (IOException e) {
+			// Nothing more can be done with the connection
+		}
+	}
+}
@@ -7,6 +7,8 @@ public class Query {
 
 	public PrintWriter querySource;
 	public String qid, query, filename;
+	// Set for queries sampled for tracing, the time they are sent is kept in their route
+	public boolean traced;
 
 	public Query(PrintWriter qs, String id, String q, String f) {
 		querySource = qs;
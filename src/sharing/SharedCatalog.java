@@ -0,0 +1,328 @@
+package src.sharing;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import src.log.Log;
+import src.log.Logger;
+
+public class SharedCatalog implements Iterable<String> {
+	// Catalog of the files listed in config_sharing.txt with their size and modification time
+	// Names are packed into one UTF-8 byte array and the metadata is kept in primitive arrays, so a
+	// million entries take tens of megabytes instead of a million String and wrapper objects
+	//
+	// The catalog is saved as a binary snapshot that is memory mapped on startup. Only files whose
+	// modification time changed since the snapshot are read again, and the list itself is only read
+	// again when config_sharing.txt changed
+	//
+	// The catalog is not changed after it is loaded, so it can be read by any thread
+
+	private static final Logger log = Log.getLogger("sharing.catalog");
+
+	// Snapshot layout, big-endian:
+	// magic, version, list modification time, list length, entry count, name bytes,
+	// name offsets[count + 1], sizes[count], modification times[count], names
+	private static final int MAGIC = 0x50325043;
+	private static final int VERSION = 1;
+	private static final int HEADER = 4 + 4 + 8 + 8 + 4 + 4;
+
+	private byte[] names;
+	private int[] offsets;
+	private long[] sizes, mtimes;
+	private int count;
+	// Open addressing hash index of entry + 1, 0 marks an empty slot
+	private int[] index;
+
+	private SharedCatalog(byte[] n, int[] o, long[] s, long[] m, int c) {
+		names = n;
+		offsets = o;
+		sizes = s;
+		mtimes = m;
+		count = c;
+		buildIndex();
+	}
+
+	public static SharedCatalog load(File list, File dir, File snapshot) throws IOException {
+		long start = System.currentTimeMillis();
+		SharedCatalog previous = null;
+		long listModified = list.lastModified(), listLength = list.length();
+		boolean listChanged = true;
+
+		long[] listInfo = new long[2];
+		if (snapshot.exists()) {
+			previous = readSnapshot(snapshot, listInfo);
+			listChanged = previous == null || listInfo[0] != listModified || listInfo[1] != listLength;
+		}
+		if (!list.exists()) {
+			throw new FileNotFoundException(list.getPath());
+		}
+
+		// Take the names from the snapshot unless the list was edited
+		SharedCatalog catalog = listChanged ? readList(list) : previous;
+		if (catalog != previous) {
+			catalog.sizes = new long[catalog.count];
+			catalog.mtimes = new long[catalog.count];
+		}
+
+		// Only files whose modification time changed are read again
+		int rescanned = 0;
+		for (int i = 0; i < catalog.count; i++) {
+			File f = new File(dir, catalog.name(i));
+			long modified = f.lastModified();
+			int old = previous == null ? -1 : (catalog == previous ? i : previous.indexOf(catalog.names, catalog.offsets[i], catalog.offsets[i + 1]));
+			if (old >= 0 && previous.mtimes[old] == modified) {
+				catalog.sizes[i] = previous.sizes[old];
+				catalog.mtimes[i] = modified;
+				continue;
+			}
+			// Listed files that are missing keep a size of -1 and are not shared until they appear and the
+			// catalog is loaded again
+			catalog.sizes[i] = modified == 0 ? -1 : f.length();
+			catalog.mtimes[i] = modified;
+			rescanned++;
+		}
+
+		if (listChanged || rescanned > 0) {
+			try {
+				catalog.writeSnapshot(snapshot, listModified, listLength);
+			} catch (IOException e) {
+				// The catalog still works, it is just scanned again on the next startup
+				log.warn("Could not save shared catalog snapshot", "file", snapshot, "error", e);
+			}
+		}
+		log.info("Loaded shared catalog", "files", catalog.count, "rescanned", rescanned, "listChanged", listChanged, "ms", System.currentTimeMillis() - start);
+		return catalog;
+	}
+
+	private static SharedCatalog readList(File list) throws IOException {
+		// Pack the names from config_sharing.txt, ignoring blank lines and duplicates
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		int[] o = new int[1024];
+		int c = 0;
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(list), StandardCharsets.UTF_8));
+		try {
+			String line = br.readLine();
+			while (line != null) {
+				if (!line.isEmpty()) {
+					byte[] b = line.getBytes(StandardCharsets.UTF_8);
+					if (c + 2 > o.length) {
+						o = Arrays.copyOf(o, o.length * 2);
+					}
+					packed.write(b, 0, b.length);
+					o[++c] = packed.size();
+				}
+				line = br.readLine();
+			}
+		} finally {
+			br.close();
+		}
+
+		SharedCatalog all = new SharedCatalog(packed.toByteArray(), o, new long[c], new long[c], c);
+		if (all.distinct() == c) {
+			return all;
+		}
+		return all.withoutDuplicates();
+	}
+
+	private static SharedCatalog readSnapshot(File snapshot, long[] listInfo) {
+		// Map the snapshot and copy each section into its array with one bulk read
+		try (RandomAccessFile raf = new RandomAccessFile(snapshot, "r"); FileChannel channel = raf.getChannel()) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (channel.size() < HEADER || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return null;
+			}
+			listInfo[0] = buffer.getLong();
+			listInfo[1] = buffer.getLong();
+			int c = buffer.getInt(), nameBytes = buffer.getInt();
+			if (c < 0 || nameBytes < 0 || channel.size() != HEADER + 4L * (c + 1) + 16L * c + nameBytes) {
+				return null;
+			}
+
+			int[] o = new int[c + 1];
+			long[] s = new long[c], m = new long[c];
+			byte[] n = new byte[nameBytes];
+			buffer.asIntBuffer().get(o);
+			buffer.position(buffer.position() + 4 * (c + 1));
+			buffer.asLongBuffer().get(s);
+			buffer.position(buffer.position() + 8 * c);
+			buffer.asLongBuffer().get(m);
+			buffer.position(buffer.position() + 8 * c);
+			buffer.get(n);
+			return new SharedCatalog(n, o, s, m, c);
+		} catch (IOException | RuntimeException e) {
+			// A damaged snapshot is rebuilt from config_sharing.txt
+			log.warn("Could not read shared catalog snapshot", "file", snapshot, "error", e);
+			return null;
+		}
+	}
+
+	private void writeSnapshot(File snapshot, long listModified, long listLength) throws IOException {
+		// Written to a temporary file first so a crash never leaves a half written snapshot
+		File tmp = new File(snapshot.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(listModified);
+			out.writeLong(listLength);
+			out.writeInt(count);
+			out.writeInt(offsets[count]);
+			for (int i = 0; i <= count; i++) {
+				out.writeInt(offsets[i]);
+			}
+			for (int i = 0; i < count; i++) {
+				out.writeLong(sizes[i]);
+			}
+			for (int i = 0; i < count; i++) {
+				out.writeLong(mtimes[i]);
+			}
+			out.write(names, 0, offsets[count]);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(snapshot)) {
+			snapshot.delete();
+			if (!tmp.renameTo(snapshot)) {
+				throw new IOException("Could not replace " + snapshot);
+			}
+		}
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public String name(int i) {
+		return new String(names, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+	}
+
+	public long length(int i) {
+		return sizes[i];
+	}
+
+	public long lastModified(int i) {
+		return mtimes[i];
+	}
+
+	public boolean available(int i) {
+		return sizes[i] != -1;
+	}
+
+	public boolean contains(String name) {
+		// Only files that were present when the catalog was loaded are shared
+		int i = indexOf(name);
+		return i >= 0 && available(i);
+	}
+
+	public int indexOf(String name) {
+		byte[] b = name.getBytes(StandardCharsets.UTF_8);
+		return indexOf(b, 0, b.length);
+	}
+
+	public Iterator<String> iterator() {
+		// Iterates over the available files only, so missing files are not published or summarized
+		return new Iterator<String>() {
+			int next = 0;
+
+			public boolean hasNext() {
+				while (next < count && !available(next)) {
+					next++;
+				}
+				return next < count;
+			}
+
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return name(next++);
+			}
+		};
+	}
+
+	private int indexOf(byte[] b, int from, int to) {
+		if (index.length == 0) {
+			return -1;
+		}
+		int mask = index.length - 1;
+		for (int slot = hash(b, from, to) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+			int i = index[slot] - 1;
+			if (equals(i, b, from, to)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean equals(int i, byte[] b, int from, int to) {
+		if (offsets[i + 1] - offsets[i] != to - from) {
+			return false;
+		}
+		for (int j = offsets[i], k = from; k < to; j++, k++) {
+			if (names[j] != b[k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void buildIndex() {
+		// At most half full so probes stay short
+		int capacity = 1;
+		while (capacity < count * 2) {
+			capacity <<= 1;
+		}
+		index = new int[count == 0 ? 0 : capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < count; i++) {
+			int slot = hash(names, offsets[i], offsets[i + 1]) & mask;
+			while (index[slot] != 0) {
+				// Keep the first of any duplicate names
+				if (equals(index[slot] - 1, names, offsets[i], offsets[i + 1])) {
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (index[slot] == 0) {
+				index[slot] = i + 1;
+			}
+		}
+	}
+
+	private int distinct() {
+		int d = 0;
+		for (int slot: index) {
+			if (slot != 0) {
+				d++;
+			}
+		}
+		return d;
+	}
+
+	private SharedCatalog withoutDuplicates() {
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		int[] o = new int[count + 1];
+		int c = 0;
+		for (int i = 0; i < count; i++) {
+			if (indexOf(names, offsets[i], offsets[i + 1]) == i) {
+				packed.write(names, offsets[i], offsets[i + 1] - offsets[i]);
+				o[++c] = packed.size();
+			}
+		}
+		return new SharedCatalog(packed.toByteArray(), o, new long[c], new long[c], c);
+	}
+
+	private static int hash(byte[] b, int from, int to) {
+		// FNV-1a
+		int h = 0x811c9dc5;
+		for (int i = from; i < to; i++) {
+			h = (h ^ (b[i] & 0xff)) * 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+}
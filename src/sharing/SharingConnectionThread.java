@@ -2,13 +2,19 @@ package src.sharing;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 
 import src.config.ConfigObject;
+import src.log.Log;
+import src.log.Logger;
 
 class SharingConnectionThread implements Runnable {
 	// Thread for communicating with a connected peer to exchange a file
 	// Created by Sharing ServerSocket
 
+	private static final Logger log = Log.getLogger("sharing.connection");
+
 	private ConfigObject config;
 	private Socket clientSocket;
 	private Thread t;
@@ -27,9 +33,9 @@ class SharingConnectionThread implements Runnable {
 			try {
 				clientSocket.close();
 			} catch (IOException e1) {
-				System.out.println("Unable to stop Sharing Server connection thread");
+				log.warn("Unable to stop sharing connection thread", "client", clientIP);
 			}
-			System.out.println("No file request recieved from " + clientIP + " after 60 seconds, connection closed");
+			log.warn("Couldn't set socket timeout, connection closed", "client", clientIP);
 		}
 	}
 
@@ -43,67 +49,171 @@ class SharingConnectionThread implements Runnable {
 
 	public void run() {
 		try {
-			OutputStream out = clientSocket.getOutputStream();
+			OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream());
 			BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
 
-			// Read file request from connected peer
-			// T:<filename>
-			String req = "";
-			try {
-				// Wait for an incoming query or heartbeat from neighbor
-				req = in.readLine();
-			}
-			catch (SocketTimeoutException e) {
-				// The client did not send a query after 60 seconds, null value of req is handled below
-			}
+			// A connection can carry several manifest, availability and chunk requests
+			// A whole file request ends the connection once the file is sent
+			while (!Thread.currentThread().isInterrupted()) {
+				String req = "";
+				try {
+					// Wait for the next request from the connected peer
+					req = in.readLine();
+				}
+				catch (SocketTimeoutException e) {
+					// The client did not send a request after 60 seconds
+					log.info("Client did not send a request for 60 seconds, closing connection", "client", clientIP);
+					break;
+				}
 
-			if (req == null) {
-				System.out.println("Client " + clientIP + " did not send a query for 60 seconds, closing connection");
-			}
-			// Check validity of request
-			else if (req.length() <= 2 || !req.substring(0, 2).equals("T:"))
-				System.out.println("Malformed file request recieved from " + clientIP);
-			// Check if requested file exists in shared folder
-			else if (config.shared_files.contains(req.substring(2))) {
-				if (sendFile(req.substring(2), out)) {
-					System.out.println("Completed file transfer to " + clientIP);
+				// The client is done and closed the connection
+				if (req == null) {
+					break;
 				}
-				else {
-					System.out.println("Error sending file to " + clientIP);
+
+				// Check validity of request
+				if (req.length() <= 2 || req.charAt(1) != ':') {
+					log.warn("Malformed file request recieved", "client", clientIP);
+					break;
+				}
+
+				String filename = req.substring(2);
+				boolean more = true;
+				switch (req.charAt(0)) {
+				case 'T':
+					// T:<filename>
+					sendWholeFile(filename, out);
+					more = false;
+					break;
+				case 'M':
+					// M:<filename>
+					Manifest m = config.files.manifest(filename);
+					writeLine(out, m == null ? "M:NONE" : m.encode());
+					break;
+				case 'A':
+					// A:<filename>
+					sendAvailability(filename, out);
+					break;
+				case 'C':
+					// C:<filename>;<chunk>
+					sendChunk(filename, out);
+					break;
+				default:
+					log.warn("Malformed file request recieved", "client", clientIP);
+					more = false;
+				}
+				out.flush();
+				if (!more) {
+					break;
 				}
-			}
-			else {
-				System.out.println("File requested by " + clientIP + " does not exist on this server");
 			}
 
 			in.close();
 	        out.close();
 
 		} catch (IOException e) {
-			System.out.println("Error reading/writing to InputSteam/OutputStream of " + clientIP);
+			log.warn("Error reading/writing to InputStream/OutputStream", "client", clientIP, "error", e);
 		}
 
         try {
         	clientSocket.close();
-			System.out.println("Closed file transfer connection to " + clientIP);
+			log.debug("Closed file transfer connection", "client", clientIP);
 		} catch (IOException e) {
-			System.out.println("Unable to stop Sharing connection thread");
+			log.warn("Unable to stop sharing connection thread", "client", clientIP);
+		}
+	}
+
+	private void sendWholeFile(String filename, OutputStream out) {
+		// Check if requested file is a complete file on this peer
+		File file = config.files.resolve(filename);
+		if (file == null) {
+			log.info("Requested file does not exist on this server", "client", clientIP, "file", filename);
+		}
+		else if (sendFile(file, out)) {
+			log.info("Completed file transfer", "client", clientIP, "file", filename);
+		}
+		else {
+			log.warn("Error sending file", "client", clientIP, "file", filename);
+		}
+	}
+
+	private void sendAvailability(String filename, OutputStream out) throws IOException {
+		// A:ALL for complete files, otherwise a bitmap of the verified chunks of a download in progress
+		SwarmDownload swarm = config.files.partial(filename);
+		if (config.files.resolve(filename) != null) {
+			writeLine(out, "A:ALL");
 		}
+		else if (swarm != null && swarm.chunksHave() > 0) {
+			writeLine(out, "A:" + Base64.getEncoder().encodeToString(swarm.available().toByteArray()));
+		}
+		else {
+			writeLine(out, "A:NONE");
+		}
+	}
+
+	private void sendChunk(String request, OutputStream out) throws IOException {
+		// C:<length> followed by the chunk, or C:NONE if this peer doesn't have it
+		int split = request.lastIndexOf(';');
+		byte[] chunk = null;
+		try {
+			String filename = request.substring(0, split);
+			int i = Integer.parseInt(request.substring(split + 1));
+			File file = config.files.resolve(filename);
+			if (file != null) {
+				Manifest m = config.files.manifest(filename);
+				if (m != null && i >= 0 && i < m.chunks()) {
+					chunk = readChunk(file, (long) i * m.chunkSize, m.chunkLength(i));
+				}
+			}
+			else {
+				SwarmDownload swarm = config.files.partial(filename);
+				if (swarm != null) {
+					chunk = swarm.readChunk(i);
+				}
+			}
+		} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+			log.warn("Malformed chunk request recieved", "client", clientIP);
+		} catch (IOException e) {
+			log.warn("Error reading chunk", "client", clientIP, "request", request, "error", e);
+		}
+
+		if (chunk == null) {
+			writeLine(out, "C:NONE");
+			return;
+		}
+		writeLine(out, "C:" + chunk.length);
+		out.write(chunk);
+		log.debug("Sent chunk", "client", clientIP, "request", request);
+	}
+
+	private static byte[] readChunk(File file, long position, int length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] chunk = new byte[length];
+			raf.seek(position);
+			raf.readFully(chunk);
+			return chunk;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void writeLine(OutputStream out, String line) throws IOException {
+		out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
 	}
 
-	public boolean sendFile(String filename, OutputStream out) {
+	public boolean sendFile(File file, OutputStream out) {
 		// Read file
-		File file = new File(config.shared_dir + filename);
 		InputStream in;
 		try {
 			in = new FileInputStream(file);
 		} catch (FileNotFoundException e) {
-			System.out.println("File '" + filename + "' was not found on this peer");
+			log.warn("Requested file was not found on this peer", "client", clientIP, "file", file.getName());
 			return false;
 		}
 
 		// Write file to output stream 8192 bytes at a time
-		System.out.println("File request for '" + filename + "' recieved from " + clientIP);
+		log.debug("File request recieved", "client", clientIP, "file", file.getName());
 
 		byte[] bytes = new byte[8192];
 		int count;
@@ -113,7 +223,7 @@ class SharingConnectionThread implements Runnable {
 	        }
 	        in.close();
 		} catch (IOException e) {
-			System.out.println("Error writing file '" + filename + "' to " + clientIP);
+			log.warn("Error writing file", "client", clientIP, "file", file.getName(), "error", e);
 			return false;
 		}
 
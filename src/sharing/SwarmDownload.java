@@ -0,0 +1,432 @@
+package src.sharing;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Random;
+
+import src.config.ConfigObject;
+import src.log.Log;
+import src.log.Logger;
+
+public class SwarmDownload {
+	// Downloads one file in chunks from every peer known to have it, a few peers at a time
+	// Each peer gets its own thread and asks for the rarest chunk it has that nobody is downloading yet,
+	// so the load is spread over every holder and new holders soon have chunks others are missing
+	// Chunks are checked against the manifest before they are written to the partial file, and
+	// verified chunks are served to other peers while the download continues
+	// The partial file is extended to the file's full length when the manifest arrives and is moved into the
+	// obtained folder in one rename when every chunk is verified
+
+	private static final Logger log = Log.getLogger("sharing.swarm");
+
+	// A provider is dropped after this many bad or failed chunks
+	private static final int maxFailures = 3;
+	// A provider that only has part of the file is asked again for its chunks this many times before it is dropped
+	private static final int maxIdleChecks = 10;
+	private static final int idleWait = 1000;
+
+	String filename;
+	// Set while the file is downloaded into the cache folder rather than the obtained folder
+	volatile boolean cache;
+	private ConfigObject config;
+	private File partialFile;
+	private Manifest manifest;
+	private FileChannel channel;
+	private BitSet have, inProgress;
+	// Number of connected providers that have each chunk
+	private int[] holders;
+	private ArrayList<String> providers, waiting;
+	private int workers;
+	private Random random;
+
+	SwarmDownload(ConfigObject c, String f, boolean ca) {
+		config = c;
+		filename = f;
+		cache = ca;
+		partialFile = new File(config.partial_dir + filename);
+		providers = new ArrayList<String>();
+		waiting = new ArrayList<String>();
+		random = new Random();
+	}
+
+	public synchronized void addProvider(String provider) {
+		// Providers are "<IP>:<port>" of a sharing server
+		if (providers.contains(provider)) {
+			return;
+		}
+		providers.add(provider);
+		waiting.add(provider);
+		startWorkers();
+	}
+
+	public synchronized Manifest manifest() {
+		return manifest;
+	}
+
+	public synchronized int chunksHave() {
+		return have == null ? 0 : have.cardinality();
+	}
+
+	public synchronized BitSet available() {
+		return have == null ? new BitSet() : (BitSet) have.clone();
+	}
+
+	public byte[] readChunk(int i) throws IOException {
+		// Only verified chunks are served
+		FileChannel c;
+		int size;
+		synchronized (this) {
+			if (have == null || i < 0 || i >= manifest.chunks() || !have.get(i)) {
+				return null;
+			}
+			c = channel;
+			size = manifest.chunkLength(i);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		long position = (long) i * manifest.chunkSize;
+		while (buffer.hasRemaining()) {
+			if (c.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		return buffer.array();
+	}
+
+	boolean run() {
+		// Called by the thread that claimed the download, returns when the file is complete or every provider failed
+		synchronized (this) {
+			startWorkers();
+			while (!isComplete() && (workers > 0 || !waiting.isEmpty())) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		return finish();
+	}
+
+	private boolean finish() {
+		boolean success;
+		synchronized (this) {
+			success = isComplete();
+			try {
+				if (channel != null) {
+					if (success && !config.fsyncPolicy.equals("none")) {
+						channel.force(true);
+					}
+					channel.close();
+				}
+			} catch (IOException e) {
+				log.warn("Could not write download to disk", "file", filename, "error", e);
+				success = false;
+			}
+		}
+
+		// Cached files are downloaded in the background, only downloads asked for with "get" are shown
+		boolean cached = cache;
+		if (success) {
+			try {
+				// The empty file of a zero length download is only created here
+				if (!partialFile.exists()) {
+					partialFile.getParentFile().mkdirs();
+					partialFile.createNewFile();
+				}
+				moveInto(cached ? config.cache_dir : config.obtained_dir);
+			} catch (IOException e) {
+				log.warn("Could not move download out of the partial folder", "file", filename, "error", e);
+				success = false;
+			}
+		}
+
+		if (success) {
+			if (!cached) {
+				System.out.println("Successfully downloaded '" + filename + "' from " + providers.size() + " peer(s)");
+			}
+			log.info("Downloaded file", "file", filename, "bytes", manifest.length, "chunks", manifest.chunks(), "providers", providers.size(), "cache", cached);
+		}
+		else {
+			if (!cached) {
+				System.out.println("Error downloading '" + filename + "'");
+			}
+			log.warn("Download failed", "file", filename, "providers", providers.size(), "chunks", chunksHave());
+			partialFile.delete();
+		}
+		config.files.completed(this, success, cached);
+		return success;
+	}
+
+	private void moveInto(String folder) throws IOException {
+		// A rename within the files folder, so the file appears in the obtained or cache folder whole or not at all
+		File target = new File(folder + filename);
+		target.getParentFile().mkdirs();
+		try {
+			Files.move(partialFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(partialFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		if (config.fsyncPolicy.equals("none")) {
+			return;
+		}
+		// Syncing the folder keeps the rename after a crash, not every platform can open a folder for this
+		try {
+			FileChannel parent = FileChannel.open(target.getParentFile().toPath(), StandardOpenOption.READ);
+			try {
+				parent.force(true);
+			} finally {
+				parent.close();
+			}
+		} catch (IOException e) {
+			log.debug("Could not sync folder", "folder", folder, "error", e);
+		}
+	}
+
+	private boolean isComplete() {
+		return manifest != null && have.cardinality() == manifest.chunks();
+	}
+
+	private void startWorkers() {
+		// Called while holding the lock
+		while (workers < config.swarmProviders && !waiting.isEmpty() && !isComplete()) {
+			final String provider = waiting.remove(0);
+			workers++;
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						download(provider);
+					} finally {
+						synchronized (SwarmDownload.this) {
+							workers--;
+							startWorkers();
+							SwarmDownload.this.notifyAll();
+						}
+					}
+				}
+			}, "Swarm Download").start();
+		}
+	}
+
+	private synchronized boolean setManifest(Manifest m) {
+		// The first manifest recieved decides the file, providers with a different file are not used
+		if (manifest != null) {
+			return manifest.sameFile(m);
+		}
+		// Every peer uses the same chunk size, and the chunk buffers are allocated from it
+		if (m.chunkSize != config.chunkSize) {
+			log.warn("Provider manifest has a different chunk size", "file", filename, "chunkSize", m.chunkSize);
+			return false;
+		}
+		if (cache && !config.cache.fits(m.length)) {
+			log.info("File is too large to cache", "file", filename, "bytes", m.length);
+			return false;
+		}
+		try {
+			partialFile.getParentFile().mkdirs();
+			if (partialFile.getParentFile().getUsableSpace() < m.length) {
+				log.warn("Not enough disk space for download", "file", filename, "bytes", m.length);
+				return false;
+			}
+			channel = FileChannel.open(partialFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			// Extend the file to its full length now, so chunks recieved in any order are written in place
+			// Only the last byte is written, so on most file systems the file is sparse and its blocks are only
+			// allocated as chunks arrive, the free space check above is what makes running out of space unlikely
+			if (m.length > 0) {
+				channel.write(ByteBuffer.allocate(1), m.length - 1);
+			}
+		} catch (IOException e) {
+			log.warn("Could not create partial file", "file", partialFile, "error", e);
+			return false;
+		}
+		manifest = m;
+		have = new BitSet(m.chunks());
+		inProgress = new BitSet(m.chunks());
+		holders = new int[m.chunks()];
+		notifyAll();
+		return true;
+	}
+
+	private synchronized int nextChunk(BitSet available) {
+		// Pick the rarest chunk the provider has that is neither verified nor being downloaded
+		// available is null when the provider has the whole file
+		int best = -1, n = manifest.chunks();
+		int start = n == 0 ? 0 : random.nextInt(n);
+		for (int k = 0; k < n; k++) {
+			int i = (start + k) % n;
+			if (have.get(i) || inProgress.get(i) || (available != null && !available.get(i))) {
+				continue;
+			}
+			if (best < 0 || holders[i] < holders[best]) {
+				best = i;
+			}
+		}
+		if (best >= 0) {
+			inProgress.set(best);
+		}
+		return best;
+	}
+
+	private synchronized void countHolders(BitSet available, int change) {
+		for (int i = 0; i < holders.length; i++) {
+			if (available == null || available.get(i)) {
+				holders[i] += change;
+			}
+		}
+	}
+
+	private void store(int i, ByteBuffer data) throws IOException {
+		long position = (long) i * manifest.chunkSize;
+		while (data.hasRemaining()) {
+			channel.write(data, position + data.position());
+		}
+		if (config.fsyncPolicy.equals("chunk")) {
+			channel.force(false);
+		}
+		synchronized (this) {
+			have.set(i);
+			inProgress.clear(i);
+			notifyAll();
+		}
+	}
+
+	private synchronized void release(int i) {
+		inProgress.clear(i);
+		notifyAll();
+	}
+
+	private void download(String provider) {
+		// Download chunks from one provider until the file is complete or the provider can't help
+		String[] address = provider.split(":");
+		SocketChannel socket = FileDownload.bindChannel(config);
+		if (socket == null) {
+			log.warn("No local port available for swarm download", "file", filename, "provider", provider);
+			return;
+		}
+		int localPort = socket.socket().getLocalPort();
+		ProviderChannel connection = new ProviderChannel(socket, config.socketTimeout);
+		BitSet available = new BitSet();
+		boolean counted = false;
+		int chunk = -1;
+
+		try {
+			connection.connect(address[0], Integer.parseInt(address[1]));
+
+			// M:<filename>
+			connection.writeLine("M:" + filename);
+			Manifest m = Manifest.decode(connection.readLine());
+			if (m == null || !setManifest(m)) {
+				log.info("Provider has no usable manifest", "file", filename, "provider", provider);
+				connection.close();
+				config.openPorts.add(localPort);
+				return;
+			}
+
+			available = availability(connection);
+			countHolders(available, 1);
+			counted = true;
+			int failures = 0, idle = 0;
+			// Chunks are read from the socket into this buffer, checked, and written to the partial file from it
+			ByteBuffer data = ByteBuffer.allocateDirect((int) Math.min(manifest.chunkSize, manifest.length));
+
+			while (true) {
+				synchronized (this) {
+					if (isComplete()) {
+						break;
+					}
+				}
+
+				chunk = nextChunk(available);
+				if (chunk < 0) {
+					// Nothing to ask this provider for right now
+					if (available != null && ++idle > maxIdleChecks) {
+						break;
+					}
+					synchronized (this) {
+						wait(idleWait);
+					}
+					if (available != null) {
+						// A provider that is still downloading may have new chunks
+						BitSet fresh = availability(connection);
+						countHolders(available, -1);
+						countHolders(fresh, 1);
+						available = fresh;
+					}
+					continue;
+				}
+
+				// C:<filename>;<chunk> is answered with C:<length> and the chunk, or C:NONE
+				connection.writeLine("C:" + filename + ";" + chunk);
+				String reply = connection.readLine();
+				boolean none = reply.equals("C:NONE");
+				if (!none) {
+					// Any other length than the chunk's leaves unread bytes or reads into the next reply,
+					// so the connection can't be used any more
+					int size = reply.startsWith("C:") ? Integer.parseInt(reply.substring(2)) : -1;
+					if (size != manifest.chunkLength(chunk)) {
+						log.warn("Provider sent a chunk of the wrong length, closing connection", "file", filename, "provider", provider, "chunk", chunk, "length", size);
+						break;
+					}
+					data.clear();
+					data.limit(size);
+					connection.readFully(data);
+					data.flip();
+				}
+
+				if (none || !manifest.verify(chunk, data)) {
+					log.warn("Bad chunk recieved", "file", filename, "provider", provider, "chunk", chunk);
+					release(chunk);
+					chunk = -1;
+					if (++failures >= maxFailures) {
+						break;
+					}
+					continue;
+				}
+				store(chunk, data);
+				log.debug("Recieved chunk", "file", filename, "provider", provider, "chunk", chunk);
+				chunk = -1;
+				idle = 0;
+			}
+			connection.close();
+		} catch (IOException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			log.warn("Error downloading from provider", "file", filename, "provider", provider, "error", e);
+			connection.close();
+		} catch (InterruptedException e) {
+			connection.close();
+			// The peer is stopping
+		}
+
+		if (chunk >= 0) {
+			release(chunk);
+		}
+		if (counted) {
+			countHolders(available, -1);
+		}
+		config.openPorts.add(localPort);
+	}
+
+	private BitSet availability(ProviderChannel connection) throws IOException {
+		// A:<filename> is answered with A:ALL, A:NONE or A:<Base64 bitmap of verified chunks>
+		connection.writeLine("A:" + filename);
+		String reply = connection.readLine();
+		if (reply.equals("A:ALL")) {
+			return null;
+		}
+		if (reply.equals("A:NONE") || !reply.startsWith("A:")) {
+			return new BitSet();
+		}
+		try {
+			return BitSet.valueOf(Base64.getDecoder().decode(reply.substring(2)));
+		} catch (IllegalArgumentException e) {
+			return new BitSet();
+		}
+	}
+}